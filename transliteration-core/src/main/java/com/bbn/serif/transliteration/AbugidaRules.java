@@ -1,19 +1,18 @@
 package com.bbn.serif.transliteration;
 
 import com.bbn.bue.common.StringUtils;
-import com.bbn.bue.common.UnicodeFriendlyString;
 import com.bbn.bue.common.strings.offsets.CharOffset;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Rules for dealing with Abugida writing systems ( https://en.wikipedia.org/wiki/Abugida ).
  */
-enum AbugidaRules implements DefaultTransliterator.TransliterationRuleBlock {
+enum AbugidaRules
+    implements DefaultTransliterator.ScriptSpecificRuleBlock, DefaultTransliterator.LocalRuleBlock {
   INSTANCE;
 
   public static final int DEFAULT_SEQUENCE_NUMBER = 30000;
@@ -23,112 +22,194 @@ enum AbugidaRules implements DefaultTransliterator.TransliterationRuleBlock {
   private static final double SUBJOINED_BONUS = 0.25;
   private static final double NUKTA_BONUS = 0.25;
 
-  private static final Pattern CONSONANT_VOWEL_PATTERN = Pattern.compile(
-      "^(.*[bcdfghjklmnpqrstvwxyz])([aeiou]+)$");
+  @Override
+  public boolean mayApplyTo(final Script.ScriptMapping scriptMapping) {
+    for (final Script.ScriptRun scriptRun : scriptMapping.scriptRuns()) {
+      if (isAbugida(scriptRun)) {
+        return true;
+      }
+    }
+    // nuktas and viramas are handled whatever their script
+    final String codeUnits = scriptMapping.string().utf16CodeUnits();
+    for (int i = 0; i < codeUnits.length(); ) {
+      final int codePoint = codeUnits.codePointAt(i);
+      if ((CODE_POINT_CLASSES.get(codePoint) & (NUKTA | VIRAMA)) != 0) {
+        return true;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return false;
+  }
 
   @Override
   public void applyToChart(final TransliterationChart chart) {
     final Script.ScriptMapping scriptMapping = chart.scriptMapping();
-    chart.string().processCodePoints(new UnicodeFriendlyString.NoResultCodePointProcessor() {
-      @Override
-      public void processCodepoint(final UnicodeFriendlyString s, final CharOffset codePointOffset,
-          final int codePoint) {
-
-        boolean blockDefaultVowel = false;
-        // nukta is used to indicate foreign sounds in Devanagari
-        if (isNukta(codePoint)) {
-          for (final ChartEdge precedingEdge : chart.edgesEndingAt(codePointOffset.asInt())) {
-            chart.addExtended(precedingEdge, codePointOffset.asInt() + 1,
-                precedingEdge.spanTransliteration(), precedingEdge.score() + NUKTA_BONUS,
-                "nukta");
-          }
-          blockDefaultVowel = true;
+    final TransliterationChart.EdgeCursor outer = chart.newCursor();
+    final TransliterationChart.EdgeCursor inner = chart.newCursor();
+    final String codeUnits = chart.string().utf16CodeUnits();
+
+    int codeUnitOffset = 0;
+    for (final Script.ScriptRun scriptRun : scriptMapping.scriptRuns()) {
+      final boolean abugidaRun = isAbugida(scriptRun);
+      for (int position = scriptRun.startPosition(); position < scriptRun.endPosition();
+           ++position) {
+        final int codePoint = codeUnits.codePointAt(codeUnitOffset);
+        codeUnitOffset += Character.charCount(codePoint);
+        // outside of abugida scripts, only nuktas and viramas can add edges
+        if (abugidaRun || (CODE_POINT_CLASSES.get(codePoint) & (NUKTA | VIRAMA)) != 0) {
+          applyToPosition(chart, scriptMapping, outer, inner, position, codePoint);
         }
+      }
+    }
+  }
 
-        // certain markers can replace the default vowel with themselves
-        if (!scriptMapping.startsNewScript(codePointOffset) && isSubjoined(codePoint) ) {
-          for (final ChartEdge precedingEdge : chart.edgesEndingAt(codePointOffset.asInt())) {
-            final Matcher consonantVowelMatcher =
-                CONSONANT_VOWEL_PATTERN.matcher(precedingEdge.spanTransliteration());
-            if (consonantVowelMatcher.matches()) {
-              final String vowel = consonantVowelMatcher.group(2);
-              if (scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, vowel)) {
-                for (final ChartEdge curEdge : chart
-                    .edgesFromTo(codePointOffset.asInt(), codePointOffset.asInt() + 1)) {
-                  final String consonant = consonantVowelMatcher.group(1);
-                  chart.addExtended(precedingEdge, codePointOffset.asInt() + 1,
-                      consonant + curEdge.spanTransliteration(),
-                      precedingEdge.score() + curEdge.score() + SUBJOINED_BONUS,
-                      "subjoined");
-                }
-              }
+  private void applyToPosition(final TransliterationChart chart,
+      final Script.ScriptMapping scriptMapping, final TransliterationChart.EdgeCursor outer,
+      final TransliterationChart.EdgeCursor inner, final int position, final int codePoint) {
+    final CharOffset codePointOffset = CharOffset.asCharOffset(position);
+
+    boolean blockDefaultVowel = false;
+    // nukta is used to indicate foreign sounds in Devanagari
+    if (isNukta(codePoint)) {
+      for (outer.endingAt(position); outer.next(); ) {
+        chart.addExtended(outer.edge(), position + 1,
+            outer.transliteration(), outer.score() + NUKTA_BONUS,
+            "nukta");
+      }
+      blockDefaultVowel = true;
+    }
+
+    // certain markers can replace the default vowel with themselves
+    if (!scriptMapping.startsNewScript(codePointOffset) && isSubjoined(codePoint) ) {
+      for (outer.endingAt(position); outer.next(); ) {
+        final String consonant = outer.consonantPart();
+        if (consonant != null) {
+          final String vowel = outer.vowelPart();
+          if (scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, vowel)) {
+            for (inner.fromTo(position, position + 1); inner.next(); ) {
+              chart.addExtended(outer.edge(), position + 1,
+                  consonant + inner.transliteration(),
+                  outer.score() + inner.score() + SUBJOINED_BONUS,
+                  "subjoined");
             }
           }
-          blockDefaultVowel = true;
         }
+      }
+      blockDefaultVowel = true;
+    }
 
-        // Virama indicates the default vowel should be suppressed
-        if (isVirama(codePoint) && codePointOffset.asInt() > 0) {
-          for (final ChartEdge edge : chart.edgesEndingAt(codePointOffset.asInt())) {
-            final Matcher consonantVowelMatcher =
-                CONSONANT_VOWEL_PATTERN.matcher(edge.spanTransliteration());
-            if (consonantVowelMatcher.matches()) {
-              final String vowel = consonantVowelMatcher.group(2);
-              if (scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, vowel)) {
-                final String consonant = consonantVowelMatcher.group(1);
-                chart.addExtended(edge, codePointOffset.asInt() + 1,
-                    consonant, edge.score() + VIRAMA_SCORE, "suppress-default-vowel");
-              }
-            } else {
-              chart.addExtended(edge, codePointOffset.asInt() + 1,
-                  edge.spanTransliteration(), edge.score() + VIRAMA_SCORE, "no-op-virama");
-            }
+    // Virama indicates the default vowel should be suppressed
+    if (isVirama(codePoint) && position > 0) {
+      for (outer.endingAt(position); outer.next(); ) {
+        final String consonant = outer.consonantPart();
+        if (consonant != null) {
+          final String vowel = outer.vowelPart();
+          if (scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, vowel)) {
+            chart.addExtended(outer.edge(), position + 1,
+                consonant, outer.score() + VIRAMA_SCORE, "suppress-default-vowel");
           }
-          blockDefaultVowel = true;
+        } else {
+          chart.addExtended(outer.edge(), position + 1,
+              outer.transliteration(), outer.score() + VIRAMA_SCORE, "no-op-virama");
         }
+      }
+      blockDefaultVowel = true;
+    }
 
-        if (!blockDefaultVowel) {
-          // in this scripts, if not blocked, every syllable includes the default vowel
-          for (final ChartEdge edge : chart.edgesEndingAt(codePointOffset.asInt() + 1)) {
-            final Optional<String> currentPrimaryDefaultVowel =
-                scriptMapping.primaryDefaultVowel(codePointOffset);
-
-            if (currentPrimaryDefaultVowel.isPresent()
-                && isLatinConsonant(edge.spanTransliteration())) {
-              chart.addExtended(edge, codePointOffset.asInt() + 1,
-                  edge.spanTransliteration() + currentPrimaryDefaultVowel.get(),
-                  edge.score() + DEFAULT_VOWEL_INCREMENT,
-                  "default-vowel");
-            }
-          }
+    if (!blockDefaultVowel) {
+      // in this scripts, if not blocked, every syllable includes the default vowel
+      final Optional<String> currentPrimaryDefaultVowel =
+          scriptMapping.primaryDefaultVowel(codePointOffset);
+      for (outer.endingAt(position + 1); outer.next(); ) {
+        if (currentPrimaryDefaultVowel.isPresent()
+            && outer.hasFeatures(OutputStringTable.LATIN_CONSONANTS)) {
+          chart.addExtended(outer.edge(), position + 1,
+              outer.transliteration() + currentPrimaryDefaultVowel.get(),
+              outer.score() + DEFAULT_VOWEL_INCREMENT,
+              "default-vowel");
         }
+      }
+    }
 
-        // deal with certain syllabic consonants
-        for (final ChartEdge edge : chart
-            .edgesFromTo(codePointOffset.asInt(), codePointOffset.asInt() + 1)) {
-          if (isAbugidaSyllabic(edge.spanTransliteration())
-              && !scriptMapping.startsNewScript(codePointOffset)
-              && scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, "a")) {
-            final String suffix = STRIP_INITIAL_PLUS.matcher(edge.spanTransliteration()).replaceAll("");
-            for (final ChartEdge maybeVowelEdge : chart.edgesEndingAt(codePointOffset.asInt())) {
-              if (endsWithVowel(maybeVowelEdge.spanTransliteration())) {
-                chart.addMerged(maybeVowelEdge, edge, maybeVowelEdge.spanTransliteration() + suffix,
-                    maybeVowelEdge.score() + edge.score() + ABUGIDA_SYLLABIC_BONUS, "syllable-end-consonant");
-              } else {
-                chart.addMerged(maybeVowelEdge, edge,
-                    maybeVowelEdge.spanTransliteration() + "a" + suffix,
-                    maybeVowelEdge.score() + edge.score() + ABUGIDA_SYLLABIC_BONUS, "syllable-end-consonant-with-default-vowel");
-              }
-            }
+    // deal with certain syllabic consonants
+    for (outer.fromTo(position, position + 1); outer.next(); ) {
+      if (isAbugidaSyllabic(outer.transliteration())
+          && !scriptMapping.startsNewScript(codePointOffset)
+          && scriptMapping.isAbugidaVowelForSomeScript(codePointOffset, "a")) {
+        // every syllabic starts with a +
+        final String suffix = outer.transliteration().substring(1);
+        for (inner.endingAt(position); inner.next(); ) {
+          if (inner.hasFeatures(OutputStringTable.ENDS_WITH_VOWEL)) {
+            chart.addMerged(inner.edge(), outer.edge(), inner.transliteration() + suffix,
+                inner.score() + outer.score() + ABUGIDA_SYLLABIC_BONUS, "syllable-end-consonant");
+          } else {
+            chart.addMerged(inner.edge(), outer.edge(),
+                inner.transliteration() + "a" + suffix,
+                inner.score() + outer.score() + ABUGIDA_SYLLABIC_BONUS, "syllable-end-consonant-with-default-vowel");
           }
         }
       }
-    });
+    }
+  }
+
+  /**
+   * Outside of abugida scripts only nuktas, viramas and subjoined marks can add edges. These
+   * extend the edges ending just before them, so they may reach one code point further left.
+   */
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return CODE_POINT_CLASSES.get(codePoint) == 0 && !isAbugida(scripts);
+  }
+
+  @Override
+  public int leftReach() {
+    return 1;
+  }
+
+  private static boolean isAbugida(final Script.ScriptRun scriptRun) {
+    return isAbugida(scriptRun.scripts());
+  }
+
+  private static boolean isAbugida(final Iterable<Script> scripts) {
+    for (final Script script : scripts) {
+      if (!script.allAbugidaDefaultVowels().isEmpty()
+          || script.primaryAbugidaDefaultVowel().isPresent()) {
+        return true;
+      }
+    }
+    return false;
   }
 
+  // flags for the code point classes we care about, which are found from the code points'
+  // Unicode names. Looking names up and matching them is slow, so we only do it once per code
+  // point.
+  private static final int NUKTA = 1;
+  private static final int SUBJOINED = 1 << 1;
+  private static final int VIRAMA = 1 << 2;
+
+  private static final LazyCodePointTable CODE_POINT_CLASSES = new LazyCodePointTable() {
+    @Override
+    protected int computeValue(final int codePoint) {
+      final String charName = Character.getName(codePoint);
+      if (charName == null) {
+        return 0;
+      }
+      int classes = 0;
+      if (charName.contains("SIGN NUKTA")) {
+        classes |= NUKTA;
+      }
+      if (SUBJOINED_PATTERN.matcher(charName).find()) {
+        classes |= SUBJOINED;
+      }
+      if (VIRAMA_PATTERN.matcher(charName).find()) {
+        classes |= VIRAMA;
+      }
+      return classes;
+    }
+  };
+
   private boolean isNukta(final int codePoint) {
-    final String charName = Character.getName(codePoint);
-    return charName != null && charName.contains("SIGN NUKTA");
+    return (CODE_POINT_CLASSES.get(codePoint) & NUKTA) != 0;
   }
 
   private static final Pattern SUBJOINED_PATTERN = Pattern.compile(
@@ -139,36 +220,11 @@ enum AbugidaRules implements DefaultTransliterator.TransliterationRuleBlock {
           + "|SUKUN))\\b");
 
   private boolean isSubjoined(final int codePoint) {
-    final String charName = Character.getName(codePoint);
-    return charName != null && SUBJOINED_PATTERN.matcher(charName).find();
-  }
-
-  private static final Pattern IS_LATIN_CONSONANT = Pattern.compile("^[bcdfghjklmnpqrstvwxyz]+$");
-
-  private boolean isLatinConsonant(final String s) {
-    return IS_LATIN_CONSONANT.matcher(s).matches();
+    return (CODE_POINT_CLASSES.get(codePoint) & SUBJOINED) != 0;
   }
 
   private static final double DEFAULT_VOWEL_INCREMENT = 0.25;
 
-  private boolean endsWithVowel(final String s) {
-    if (s.isEmpty()) {
-      return false;
-    }
-    switch (s.charAt(s.length()-1)) {
-      case 'a':
-      case 'e':
-      case 'i':
-      case 'o':
-      case 'u':
-        return true;
-      default:
-        return false;
-    }
-  }
-
-  private static final Pattern STRIP_INITIAL_PLUS = Pattern.compile("^\\+");
-
   private static final ImmutableSet<String> ABUGIDA_SYLLABICS = ImmutableSet.of("+H", "+M",
       "+N", "+NG", "+h", "+m", "+n", "+ng");
   private static boolean isAbugidaSyllabic(final String s) {
@@ -181,7 +237,6 @@ enum AbugidaRules implements DefaultTransliterator.TransliterationRuleBlock {
       "\\bSIGN (?:" + StringUtils.pipeJoiner().join(VIRAMA_WORDS) + ")\\b");
 
   private boolean isVirama(final int codePoint) {
-    final String charName = Character.getName(codePoint);
-    return charName != null && VIRAMA_PATTERN.matcher(charName).find();
+    return (CODE_POINT_CLASSES.get(codePoint) & VIRAMA) != 0;
   }
 }
@@ -2,11 +2,14 @@ package com.bbn.serif.transliteration;
 
 import com.bbn.bue.common.StringUtils;
 
+import com.google.common.collect.ImmutableSet;
+
 /**
  * To ensure it is always possible to find a path through the chart, we can add low scoring
  * edges which simply copy the input characters without transliteration.
  */
-enum BackoffTransliterationRules implements DefaultTransliterator.TransliterationRuleBlock {
+enum BackoffTransliterationRules
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
   INSTANCE;
 
   // this should generally be the last rule applied, so we give it a sequence number close to the end,
@@ -17,15 +20,23 @@ enum BackoffTransliterationRules implements DefaultTransliterator.Transliteratio
 
   @Override
   public void applyToChart(TransliterationChart chart) {
-    for (int codePointPos = 0, codeUnitPos = 0;
-         codeUnitPos < chart.string().utf16CodeUnits().length(); ++codePointPos) {
-      final int codePoint = Character.codePointAt(chart.string().utf16CodeUnits(), codeUnitPos);
-      chart.addEdge(new ChartEdge.Builder()
-          .startPosition(codePointPos)
-          .endPosition(codePointPos + 1)
-          .spanTransliteration(StringUtils.codepointToString(codePoint))
-          .score(IDENTITY_TRANSLITERATION_SCORE).build(), "backoff-identity");
-      codeUnitPos += Character.charCount(codePoint);
-    }
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(DefaultTransliterator.EdgeSink edges, int[] codePoints,
+      int length, int position) {
+    edges.addEdge(position, position + 1, StringUtils.codepointToString(codePoints[position]),
+        IDENTITY_TRANSLITERATION_SCORE, "backoff-identity");
+  }
+
+  @Override
+  public boolean isContextFree(int codePoint, ImmutableSet<Script> scripts) {
+    return true;
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
   }
 }
@@ -0,0 +1,70 @@
+package com.bbn.serif.transliteration;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes the table loaded by {@link UnicodeNameTransliterationTable} by applying the Unicode
+ * character name rules of {@link TransliterateByUnicodeCharacterName} to every code point.  The
+ * output depends on the Unicode character database of the JDK this is run on, which is recorded
+ * in the table's header.
+ *
+ * Usage: {@code BuildUnicodeNameTransliterationTable outputFile}. The checked-in table lives at
+ * {@code src/main/resources/com/bbn/serif/transliteration/unicodeNameTransliterations.txt} and
+ * should be regenerated whenever the rules change.
+ */
+public final class BuildUnicodeNameTransliterationTable {
+
+  private BuildUnicodeNameTransliterationTable() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("usage: BuildUnicodeNameTransliterationTable outputFile");
+      System.exit(1);
+    }
+
+    int numEntries = 0;
+    int numRefused = 0;
+    try (Writer out = Files.asCharSink(new File(args[0]), UTF_8).openBufferedStream()) {
+      out.write("# Transliterations of code points by Unicode character name.\n");
+      out.write("# Generated by " + BuildUnicodeNameTransliterationTable.class.getName()
+          + "; do not edit by hand.\n");
+      out.write("# Unicode character data from Java " + System.getProperty("java.version")
+          + "\n");
+      out.write("# code point (hex)\\ttransliteration\n");
+      for (int codePoint = Character.MIN_CODE_POINT; codePoint <= Character.MAX_CODE_POINT;
+           ++codePoint) {
+        if (!TransliterateByUnicodeCharacterName.isHandled(codePoint)) {
+          continue;
+        }
+        final Optional<String> transliteration =
+            TransliterateByUnicodeCharacterName.computeTransliteration(codePoint);
+        if (!transliteration.isPresent()) {
+          ++numRefused;
+          continue;
+        }
+        checkState(transliteration.get().indexOf('\t') < 0
+                && transliteration.get().indexOf('\n') < 0
+                && transliteration.get().indexOf('\r') < 0,
+            "Transliteration of code point %s cannot be written to the table", codePoint);
+        out.write(Integer.toHexString(codePoint).toUpperCase(Locale.ENGLISH));
+        out.write('\t');
+        out.write(transliteration.get());
+        out.write('\n');
+        ++numEntries;
+      }
+    }
+    System.out.println("Wrote " + numEntries + " transliterations to " + args[0] + "; "
+        + numRefused + " handled code points have no transliteration");
+  }
+}
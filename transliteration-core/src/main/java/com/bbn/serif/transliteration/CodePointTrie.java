@@ -0,0 +1,215 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A frozen trie over sequences of Unicode code points.  Each node is identified by an {@code int}
+ * and the root is {@link #ROOT}. Nodes which complete a pattern carry that pattern's index (the
+ * order in which it was first added to the {@link Builder}).
+ *
+ * All data is held in flat {@code int} arrays so that walking the trie never boxes code points.
+ * A typical match loop looks like:
+ *
+ * <pre>
+ *   int node = CodePointTrie.ROOT;
+ *   for (each code point c from some start position) {
+ *     node = trie.child(node, c);
+ *     if (node == CodePointTrie.NO_NODE) break;
+ *     if (trie.patternAt(node) != CodePointTrie.NO_PATTERN) { ... match ... }
+ *   }
+ * </pre>
+ *
+ * This object is immutable and thread-safe.
+ */
+final class CodePointTrie {
+
+  static final int ROOT = 0;
+  static final int NO_NODE = -1;
+  static final int NO_PATTERN = -1;
+
+  // we scan short child lists linearly and binary search longer ones
+  private static final int MAX_LINEAR_SCAN = 8;
+
+  // the children of node n are at indices childStart[n] (inclusive) to childStart[n+1] (exclusive)
+  // of childCodePoints and childNodes, sorted by code point
+  private final int[] childStart;
+  private final int[] childCodePoints;
+  private final int[] childNodes;
+  private final int[] patternAtNode;
+  private final int numPatterns;
+  private final int maxPatternLength;
+
+  // the root usually has by far the most children (e.g. thousands of ideographs), so we give it
+  // an open-addressing hash table instead of a binary search
+  private final int[] rootHashKeys;
+  private final int[] rootHashNodes;
+  private final int rootHashMask;
+
+  private CodePointTrie(int[] childStart, int[] childCodePoints, int[] childNodes,
+      int[] patternAtNode, int numPatterns, int maxPatternLength) {
+    this.childStart = childStart;
+    this.childCodePoints = childCodePoints;
+    this.childNodes = childNodes;
+    this.patternAtNode = patternAtNode;
+    this.numPatterns = numPatterns;
+    this.maxPatternLength = maxPatternLength;
+
+    final int numRootChildren = childStart[ROOT + 1] - childStart[ROOT];
+    int tableSize = 2;
+    while (tableSize < 2 * numRootChildren) {
+      tableSize *= 2;
+    }
+    this.rootHashMask = tableSize - 1;
+    this.rootHashKeys = new int[tableSize];
+    this.rootHashNodes = new int[tableSize];
+    Arrays.fill(rootHashNodes, NO_NODE);
+    for (int i = childStart[ROOT]; i < childStart[ROOT + 1]; ++i) {
+      int slot = mix(childCodePoints[i]) & rootHashMask;
+      while (rootHashNodes[slot] != NO_NODE) {
+        slot = (slot + 1) & rootHashMask;
+      }
+      rootHashKeys[slot] = childCodePoints[i];
+      rootHashNodes[slot] = childNodes[i];
+    }
+  }
+
+  /**
+   * The node reached from {@code node} by consuming {@code codePoint}, or {@link #NO_NODE} if
+   * no pattern continues that way.
+   */
+  int child(final int node, final int codePoint) {
+    if (node == ROOT) {
+      int slot = mix(codePoint) & rootHashMask;
+      while (rootHashNodes[slot] != NO_NODE) {
+        if (rootHashKeys[slot] == codePoint) {
+          return rootHashNodes[slot];
+        }
+        slot = (slot + 1) & rootHashMask;
+      }
+      return NO_NODE;
+    }
+
+    final int start = childStart[node];
+    final int end = childStart[node + 1];
+    if (end - start <= MAX_LINEAR_SCAN) {
+      for (int i = start; i < end; ++i) {
+        if (childCodePoints[i] == codePoint) {
+          return childNodes[i];
+        }
+      }
+      return NO_NODE;
+    }
+    final int idx = Arrays.binarySearch(childCodePoints, start, end, codePoint);
+    return idx >= 0 ? childNodes[idx] : NO_NODE;
+  }
+
+  /**
+   * The index of the pattern which ends at {@code node}, or {@link #NO_PATTERN} if none does.
+   */
+  int patternAt(final int node) {
+    return patternAtNode[node];
+  }
+
+  int numPatterns() {
+    return numPatterns;
+  }
+
+  int numNodes() {
+    return patternAtNode.length;
+  }
+
+  /**
+   * The length in code points of the longest pattern.
+   */
+  int maxPatternLength() {
+    return maxPatternLength;
+  }
+
+  private static int mix(int codePoint) {
+    // Fibonacci hashing spreads out runs of consecutive code points
+    final int h = codePoint * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  static final class Builder {
+
+    private final MutableNode root = new MutableNode();
+    private int numPatterns = 0;
+    private int maxPatternLength = 0;
+
+    /**
+     * Adds {@code pattern} if it is not already present and returns its index.  Pattern indices
+     * are assigned consecutively from zero in the order patterns are first added.
+     */
+    int add(UnicodeFriendlyString pattern) {
+      checkArgument(!pattern.isEmpty(), "Cannot add empty pattern to trie");
+      final String codeUnits = pattern.utf16CodeUnits();
+      MutableNode node = root;
+      int length = 0;
+      for (int offset = 0; offset < codeUnits.length(); ++length) {
+        final int codePoint = codeUnits.codePointAt(offset);
+        MutableNode next = node.children.get(codePoint);
+        if (next == null) {
+          next = new MutableNode();
+          node.children.put(codePoint, next);
+        }
+        node = next;
+        offset += Character.charCount(codePoint);
+      }
+      if (node.pattern == NO_PATTERN) {
+        node.pattern = numPatterns++;
+        maxPatternLength = Math.max(maxPatternLength, length);
+      }
+      return node.pattern;
+    }
+
+    CodePointTrie build() {
+      // number nodes breadth-first. Each node's children then occupy one contiguous block of the
+      // child arrays
+      final List<MutableNode> nodes = new ArrayList<>();
+      nodes.add(root);
+      int numEdges = 0;
+      for (int i = 0; i < nodes.size(); ++i) {
+        final MutableNode node = nodes.get(i);
+        node.id = i;
+        nodes.addAll(node.children.values());
+        numEdges += node.children.size();
+      }
+
+      final int[] childStart = new int[nodes.size() + 1];
+      final int[] childCodePoints = new int[numEdges];
+      final int[] childNodes = new int[numEdges];
+      final int[] patternAtNode = new int[nodes.size()];
+
+      int edgeIdx = 0;
+      for (final MutableNode node : nodes) {
+        childStart[node.id] = edgeIdx;
+        patternAtNode[node.id] = node.pattern;
+        // TreeMap iterates in code point order, which binary search requires
+        for (final Map.Entry<Integer, MutableNode> e : node.children.entrySet()) {
+          childCodePoints[edgeIdx] = e.getKey();
+          childNodes[edgeIdx] = e.getValue().id;
+          ++edgeIdx;
+        }
+      }
+      childStart[nodes.size()] = edgeIdx;
+
+      return new CodePointTrie(childStart, childCodePoints, childNodes, patternAtNode,
+          numPatterns, maxPatternLength);
+    }
+
+    private static final class MutableNode {
+      final TreeMap<Integer, MutableNode> children = new TreeMap<>();
+      int pattern = NO_PATTERN;
+      int id;
+    }
+  }
+}
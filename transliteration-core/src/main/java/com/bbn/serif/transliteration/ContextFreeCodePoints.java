@@ -0,0 +1,107 @@
+package com.bbn.serif.transliteration;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * For each code point, whether a {@link DefaultTransliterator} transliterates it the same way
+ * wherever it occurs, and if so the edges its chart would have for it. Like
+ * {@link LazyCodePointTable}, this is filled in lazily one block of 256 code points at a time by
+ * {@link #computeDecoding(int)}.
+ *
+ * This class is thread-safe provided {@link #computeDecoding(int)} is a pure function.
+ */
+abstract class ContextFreeCodePoints {
+
+  private static final int BLOCK_BITS = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+  private static final int NUM_BLOCKS = (Character.MAX_CODE_POINT + 1) >>> BLOCK_BITS;
+
+  // blocks with no context-free code points are shared
+  private static final Decoding[] NO_DECODINGS = new Decoding[BLOCK_SIZE];
+
+  private final AtomicReferenceArray<Decoding[]> blocks = new AtomicReferenceArray<>(NUM_BLOCKS);
+  private final int leftMargin;
+
+  ContextFreeCodePoints(final int leftMargin) {
+    checkArgument(leftMargin >= 0);
+    this.leftMargin = leftMargin;
+  }
+
+  /**
+   * How many code points before a code point which is not context-free may have edges
+   * depending on it. A chart built for a span of such code points must include this many
+   * code points before it.
+   */
+  final int leftMargin() {
+    return leftMargin;
+  }
+
+  /**
+   * The decoding of {@code codePoint}, which must be a valid code point, or {@code null} if it is
+   * not context-free.
+   */
+  final Decoding decodingOf(final int codePoint) {
+    final int blockIdx = codePoint >>> BLOCK_BITS;
+    Decoding[] block = blocks.get(blockIdx);
+    if (block == null) {
+      block = computeBlock(blockIdx);
+      blocks.set(blockIdx, block);
+    }
+    return block[codePoint & BLOCK_MASK];
+  }
+
+  /**
+   * Computes the decoding of {@code codePoint}, or {@code null} if it is not context-free or
+   * has no edges.
+   */
+  protected abstract Decoding computeDecoding(int codePoint);
+
+  private Decoding[] computeBlock(final int blockIdx) {
+    final Decoding[] block = new Decoding[BLOCK_SIZE];
+    final int firstCodePoint = blockIdx << BLOCK_BITS;
+    boolean anyDecodings = false;
+    for (int i = 0; i < BLOCK_SIZE; ++i) {
+      block[i] = computeDecoding(firstCodePoint + i);
+      anyDecodings |= block[i] != null;
+    }
+    return anyDecodings ? block : NO_DECODINGS;
+  }
+
+  /**
+   * The edges covering a context-free code point, in the order they are added to a chart.
+   */
+  static final class Decoding {
+
+    private final String[] transliterations;
+    private final double[] scores;
+
+    Decoding(final String[] transliterations, final double[] scores) {
+      checkArgument(transliterations.length == scores.length);
+      checkArgument(transliterations.length > 0);
+      this.transliterations = transliterations;
+      this.scores = scores;
+    }
+
+    /**
+     * Extends a best path with score {@code score} by the best edge for this code point,
+     * appending its transliteration to {@code out}, and returns the score of the extended path.
+     * The edge is chosen exactly as {@link TransliterationChart#bestDecoding()} would choose it.
+     */
+    double extendBestPath(final double score, final StringBuilder out) {
+      int bestEdge = 0;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (int edge = 0; edge < scores.length; ++edge) {
+        final double pathScore = score + scores[edge];
+        if (bestScore < pathScore) {
+          bestScore = pathScore;
+          bestEdge = edge;
+        }
+      }
+      out.append(transliterations[bestEdge]);
+      return bestScore;
+    }
+  }
+}
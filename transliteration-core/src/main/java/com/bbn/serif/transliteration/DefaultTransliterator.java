@@ -2,17 +2,27 @@ package com.bbn.serif.transliteration;
 
 import com.bbn.bue.common.StringNormalizer;
 import com.bbn.bue.common.StringNormalizers;
+import com.bbn.bue.common.StringUtils;
 import com.bbn.bue.common.TextGroupImmutable;
 import com.bbn.bue.common.UnicodeFriendlyString;
 import com.bbn.bue.common.collections.MapUtils;
+import com.bbn.bue.common.strings.offsets.CharOffset;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Doubles;
 
 import org.immutables.value.Value;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Default implementation of a {@link Transliterator} which applies a sequence of
  * {@link TransliterationRuleBlock}s in the order given by their sequence numbers. In case of a
@@ -36,6 +46,61 @@ abstract class DefaultTransliterator implements Transliterator {
     return StringNormalizers.toNfc();
   }
 
+  /**
+   * Whether to record how each chart edge came to be. Derivations are only useful for debugging,
+   * so production users may want to turn this off to save time and memory.  Defaults to true.
+   */
+  @Value.Default
+  boolean trackDerivations() {
+    return true;
+  }
+
+  /**
+   * Whether each thread should keep a {@link TransliterationChart} and reuse its storage for
+   * every string it transliterates instead of allocating a new chart each time. This pays off when
+   * transliterating many short strings. Each thread which uses this transliterator then holds on
+   * to a chart sized for the longest string it has seen (up to {@link #MAX_REUSED_CHART_LENGTH}),
+   * so this defaults to false.
+   */
+  @Value.Default
+  boolean reuseWorkspaces() {
+    return false;
+  }
+
+  /**
+   * Whether to copy the transliterations of code points which are transliterated the same way
+   * wherever they occur straight to the output, only building charts for the rest of the string.
+   * The output is the same either way. See {@link LocalRuleBlock}. Defaults to true.
+   */
+  @Value.Default
+  boolean useContextFreeFastPath() {
+    return true;
+  }
+
+  /**
+   * Whether to decode strings to which only {@link IndependentRuleBlock}s apply left to right,
+   * generating each position's edges only once decoding reaches it and never storing them in a
+   * chart. The output is the same either way. This is not done when
+   * {@link #maxEdgesPerSpan()} is set. Defaults to true.
+   */
+  @Value.Default
+  boolean useIncrementalDecoding() {
+    return true;
+  }
+
+  /**
+   * If present, each chart keeps at most this many edges over any one span, dropping the lowest
+   * scoring ones. This bounds the work rule blocks do on dense input, but may change the output.
+   * Absent by default.
+   */
+  abstract Optional<Integer> maxEdgesPerSpan();
+
+  @Value.Check
+  protected void check() {
+    checkArgument(!maxEdgesPerSpan().isPresent() || maxEdgesPerSpan().get() > 0,
+        "Maximum edges per span must be positive but got %s", maxEdgesPerSpan());
+  }
+
   abstract Script.CodePointToScriptMapper scriptMapper();
   abstract ImmutableMultimap<Integer, TransliterationRuleBlock> ruleBlocksBySequenceNumber();
 
@@ -48,6 +113,36 @@ abstract class DefaultTransliterator implements Transliterator {
         .toList();
   }
 
+  /**
+   * {@link #ruleBlocksInOrder()} with each run of consecutive {@link IndependentRuleBlock}s
+   * replaced by a single {@link FusedIndependentRuleBlocks}.
+   */
+  @Value.Derived
+  ImmutableList<TransliterationRuleBlock> ruleBlocksToApply() {
+    final ImmutableList.Builder<TransliterationRuleBlock> ret = ImmutableList.builder();
+    final List<IndependentRuleBlock> independentRun = new ArrayList<>();
+    for (final TransliterationRuleBlock ruleBlock : ruleBlocksInOrder()) {
+      if (ruleBlock instanceof IndependentRuleBlock) {
+        independentRun.add((IndependentRuleBlock) ruleBlock);
+      } else {
+        addIndependentRun(independentRun, ret);
+        ret.add(ruleBlock);
+      }
+    }
+    addIndependentRun(independentRun, ret);
+    return ret.build();
+  }
+
+  private static void addIndependentRun(final List<IndependentRuleBlock> independentRun,
+      final ImmutableList.Builder<TransliterationRuleBlock> ruleBlocks) {
+    if (independentRun.size() == 1) {
+      ruleBlocks.add(independentRun.get(0));
+    } else if (independentRun.size() > 1) {
+      ruleBlocks.add(FusedIndependentRuleBlocks.of(independentRun));
+    }
+    independentRun.clear();
+  }
+
   /**
    * Any transformation of the transliteration chart.
    */
@@ -55,16 +150,322 @@ abstract class DefaultTransliterator implements Transliterator {
     void applyToChart(TransliterationChart chart);
   }
 
+  /**
+   * Something rule blocks can add edges to: a {@link TransliterationChart}, or an
+   * {@link IncrementalDecoder} which decodes the edges as they arrive without storing them.
+   */
+  interface EdgeSink {
+
+    /**
+     * Adds a possible transliteration of the code points from {@code startPosition} up to
+     * {@code endPosition}.
+     *
+     * @param derivation why the edge was added
+     */
+    void addEdge(int startPosition, int endPosition, String transliteration, double score,
+        String derivation);
+  }
+
+  /**
+   * A {@link TransliterationRuleBlock} which only adds edges based on the string being
+   * transliterated and never looks at the edges already in the chart.  Consecutive such rule
+   * blocks are applied together by {@link FusedIndependentRuleBlocks} in a single pass over the
+   * string, and if they are the only rule blocks which apply to a string it is decoded by an
+   * {@link IncrementalDecoder} without building a chart at all.
+   * {@link #applyToChart(TransliterationChart)} must add the same edges as calling
+   * {@link #addEdgesStartingAt(EdgeSink, int[], int, int)} for each position in turn, which
+   * {@link #applyAtEachPosition(IndependentRuleBlock, TransliterationChart)} does.
+   */
+  interface IndependentRuleBlock extends TransliterationRuleBlock {
+
+    /**
+     * Adds this rule block's edges which start at {@code position} to {@code edges}. The string
+     * being transliterated is the first {@code length} code points of {@code codePoints}.
+     */
+    void addEdgesStartingAt(EdgeSink edges, int[] codePoints, int length, int position);
+  }
+
+  /**
+   * Applies {@code ruleBlock} to {@code chart} by adding its edges starting at each position in
+   * turn. Most {@link IndependentRuleBlock}s implement
+   * {@link TransliterationRuleBlock#applyToChart(TransliterationChart)} with this.
+   */
+  static void applyAtEachPosition(final IndependentRuleBlock ruleBlock,
+      final TransliterationChart chart) {
+    final int[] codePoints = chart.codePoints();
+    final int length = chart.string().lengthInCodePoints();
+    for (int position = 0; position < length; ++position) {
+      ruleBlock.addEdgesStartingAt(chart, codePoints, length, position);
+    }
+  }
+
+  /**
+   * A {@link TransliterationRuleBlock} which can tell which code points it treats the same way
+   * wherever they occur. If every rule block of a transliterator is of this kind, runs of such
+   * context-free code points are transliterated without building a chart.
+   */
+  interface LocalRuleBlock extends TransliterationRuleBlock {
+
+    /**
+     * Whether this rule block treats {@code codePoint}, which may be from any of
+     * {@code scripts}, the same way wherever it occurs. Wherever such a code point occurs, the
+     * rule block must add the same edges covering just its position, in the same order, and
+     * must add no edges covering both its position and another one, except as allowed by
+     * {@link #leftReach()}.
+     *
+     * At the last position before a context-free code point, the rule block must behave as if
+     * the string ended there.
+     */
+    boolean isContextFree(int codePoint, ImmutableSet<Script> scripts);
+
+    /**
+     * How far left of the edges already in the chart this rule block may reach. If before it is
+     * applied no edge covers both a context-free code point and a position more than {@code n}
+     * code points to its right, then afterwards no edge may cover both a context-free code point
+     * and a position more than {@code n + leftReach()} code points to its right. Neither may the
+     * rule block look at edges further left than that.
+     */
+    int leftReach();
+  }
+
+  /**
+   * A {@link TransliterationRuleBlock} which only does anything for text in certain scripts.
+   * Before applying such a block we ask it whether it could change the chart at all, and skip it
+   * if not.
+   */
+  interface ScriptSpecificRuleBlock extends TransliterationRuleBlock {
+
+    /**
+     * Whether applying this rule block to the chart of a string with the given script mapping
+     * could add any edges. This should be cheap compared to applying the rule block, and must
+     * not return {@code false} if the rule block could add edges.
+     */
+    boolean mayApplyTo(Script.ScriptMapping scriptMapping);
+  }
+
+  /**
+   * A copy of this transliterator which additionally applies {@code mapper} at
+   * {@code sequenceNumber}.  If a {@link MergedSubstringMappers} is applied there, {@code mapper}
+   * is merged into the last one so that all the mappings are still matched in a single pass over
+   * the input. Otherwise it is applied after any rule blocks already there.
+   */
+  DefaultTransliterator withAdditionalMapper(final int sequenceNumber,
+      final SubstringMapper mapper) {
+    final ImmutableMultimap.Builder<Integer, TransliterationRuleBlock> newRuleBlocks =
+        ImmutableMultimap.builder();
+    boolean added = false;
+    for (final Integer existingSequenceNumber : ruleBlocksBySequenceNumber().keySet()) {
+      final List<TransliterationRuleBlock> ruleBlocks = new ArrayList<>(
+          ruleBlocksBySequenceNumber().get(existingSequenceNumber));
+      if (existingSequenceNumber == sequenceNumber) {
+        int lastMerged = ruleBlocks.size() - 1;
+        while (lastMerged >= 0 && !(ruleBlocks.get(lastMerged) instanceof MergedSubstringMappers)) {
+          --lastMerged;
+        }
+        if (lastMerged >= 0) {
+          ruleBlocks.set(lastMerged,
+              ((MergedSubstringMappers) ruleBlocks.get(lastMerged)).withAdditionalMapper(mapper));
+        } else {
+          ruleBlocks.add(mapper);
+        }
+        added = true;
+      }
+      newRuleBlocks.putAll(existingSequenceNumber, ruleBlocks);
+    }
+    if (!added) {
+      newRuleBlocks.put(sequenceNumber, mapper);
+    }
+
+    return new Builder().from(this).ruleBlocksBySequenceNumber(newRuleBlocks.build()).build();
+  }
+
+  /**
+   * A copy of this transliterator which additionally applies {@code ruleBlock} at
+   * {@code sequenceNumber}, after any rule blocks already there.
+   */
+  DefaultTransliterator withAdditionalRuleBlock(final int sequenceNumber,
+      final TransliterationRuleBlock ruleBlock) {
+    final ImmutableMultimap.Builder<Integer, TransliterationRuleBlock> newRuleBlocks =
+        ImmutableMultimap.builder();
+    newRuleBlocks.putAll(ruleBlocksBySequenceNumber());
+    newRuleBlocks.put(sequenceNumber, ruleBlock);
+    return new Builder().from(this).ruleBlocksBySequenceNumber(newRuleBlocks.build()).build();
+  }
+
+  /**
+   * Strings longer than this always get a fresh chart, so that a single huge input doesn't leave
+   * huge reused charts behind.
+   */
+  static final int MAX_REUSED_CHART_LENGTH = 4096;
+
+  // each thread's reusable chart when reuseWorkspaces() is true. A thread takes its chart out
+  // while using it, so a nested call on the same thread just gets a fresh one.
+  private final ThreadLocal<TransliterationChart> workspaces = new ThreadLocal<>();
+  // likewise for incremental decoding
+  private final ThreadLocal<IncrementalDecoder> decoders = new ThreadLocal<>();
+
   @Override
   public UnicodeFriendlyString transliterate(final UnicodeFriendlyString s) {
-    final TransliterationChart chart =
-        TransliterationChart.createForLength(s, scriptMapper().mapStringToScripts(s));
+    if (s.isEmpty()) {
+      return s;
+    }
+    final StringBuilder out = new StringBuilder();
+    if (contextFreeCodePoints().isPresent()) {
+      // copy the transliterations of context-free code points straight to the output, building
+      // charts only for the regions around the other code points
+      final TransliterationStream stream = TransliterationStream.forDefaultTransliterator(this);
+      stream.addText(s.utf16CodeUnits());
+      stream.decode(true, out);
+      return stream.foundNoPath() ? s : StringUtils.unicodeFriendly(out.toString());
+    } else {
+      return transliterateRegion(s, 0.0, out) > Double.NEGATIVE_INFINITY
+          ? StringUtils.unicodeFriendly(out.toString()) : s;
+    }
+  }
 
-    for (final TransliterationRuleBlock ruleBlock : ruleBlocksInOrder()) {
+  /**
+   * Decodes {@code s}, building its chart unless it can be decoded incrementally, appends its
+   * best decoding to {@code out} and returns its score. See
+   * {@link TransliterationChart#appendBestDecoding(double, StringBuilder)}.
+   */
+  double transliterateRegion(final UnicodeFriendlyString s, final double initialScore,
+      final StringBuilder out) {
+    final Script.ScriptMapping scriptMapping = scriptMapper().mapStringToScripts(s);
+    if (useIncrementalDecoding() && !maxEdgesPerSpan().isPresent()) {
+      final List<IndependentRuleBlock> independentRuleBlocks =
+          independentRuleBlocksFor(scriptMapping);
+      if (independentRuleBlocks != null) {
+        return decodeIncrementally(independentRuleBlocks, s, initialScore, out);
+      }
+    }
+    if (!reuseWorkspaces() || s.lengthInCodePoints() > MAX_REUSED_CHART_LENGTH) {
+      final TransliterationChart chart = newChart(s, scriptMapping, trackDerivations());
+      applyRuleBlocks(chart);
+      return chart.appendBestDecoding(initialScore, out);
+    }
+
+    TransliterationChart chart = workspaces.get();
+    if (chart != null) {
+      workspaces.set(null);
+      chart.reset(s, scriptMapping);
+    } else {
+      chart = newChart(s, scriptMapping, trackDerivations());
+    }
+    try {
+      applyRuleBlocks(chart);
+      return chart.appendBestDecoding(initialScore, out);
+    } finally {
+      workspaces.set(chart);
+    }
+  }
+
+  private double decodeIncrementally(final List<IndependentRuleBlock> ruleBlocks,
+      final UnicodeFriendlyString s, final double initialScore, final StringBuilder out) {
+    if (!reuseWorkspaces() || s.lengthInCodePoints() > MAX_REUSED_CHART_LENGTH) {
+      return new IncrementalDecoder().decode(ruleBlocks, s, initialScore, out);
+    }
+    IncrementalDecoder decoder = decoders.get();
+    if (decoder != null) {
+      decoders.set(null);
+    } else {
+      decoder = new IncrementalDecoder();
+    }
+    try {
+      return decoder.decode(ruleBlocks, s, initialScore, out);
+    } finally {
+      decoders.set(decoder);
+    }
+  }
+
+  private TransliterationChart newChart(final UnicodeFriendlyString s,
+      final Script.ScriptMapping scriptMapping, final boolean trackDerivations) {
+    return TransliterationChart.createForLength(s, scriptMapping, trackDerivations,
+        maxEdgesPerSpan().or(Integer.MAX_VALUE));
+  }
+
+  /**
+   * The {@link IndependentRuleBlock}s to apply to a string with {@code scriptMapping}, in order,
+   * or {@code null} if a rule block of some other kind applies to it. Applying them position by
+   * position adds the edges starting at each position in the same order as
+   * {@link #applyRuleBlocks(TransliterationChart)} would.
+   */
+  private List<IndependentRuleBlock> independentRuleBlocksFor(
+      final Script.ScriptMapping scriptMapping) {
+    final List<IndependentRuleBlock> ret = new ArrayList<>();
+    for (final TransliterationRuleBlock ruleBlock : ruleBlocksToApply()) {
+      if (ruleBlock instanceof FusedIndependentRuleBlocks) {
+        ret.addAll(((FusedIndependentRuleBlocks) ruleBlock).ruleBlocks());
+      } else if (ruleBlock instanceof IndependentRuleBlock) {
+        ret.add((IndependentRuleBlock) ruleBlock);
+      } else if (!(ruleBlock instanceof ScriptSpecificRuleBlock
+          && !((ScriptSpecificRuleBlock) ruleBlock).mayApplyTo(scriptMapping))) {
+        return null;
+      }
+    }
+    return ret;
+  }
+
+  private void applyRuleBlocks(final TransliterationChart chart) {
+    for (final TransliterationRuleBlock ruleBlock : ruleBlocksToApply()) {
+      if (ruleBlock instanceof ScriptSpecificRuleBlock
+          && !((ScriptSpecificRuleBlock) ruleBlock).mayApplyTo(chart.scriptMapping())) {
+        continue;
+      }
       ruleBlock.applyToChart(chart);
     }
+  }
+
+  /**
+   * Which code points this transliterator can handle without a chart. This is only available if
+   * {@link #useContextFreeFastPath()} and every rule block is a {@link LocalRuleBlock}. We also
+   * require the script mapper to look at each code point on its own, so that the scripts of a
+   * code point don't depend on its context either.
+   */
+  @Value.Lazy
+  Optional<ContextFreeCodePoints> contextFreeCodePoints() {
+    if (!useContextFreeFastPath()
+        || !(scriptMapper() instanceof Script.AbstractCodePointToScriptMapper)) {
+      return Optional.absent();
+    }
+    final ImmutableList.Builder<LocalRuleBlock> localRuleBlocksB = ImmutableList.builder();
+    int leftMargin = 0;
+    for (final TransliterationRuleBlock ruleBlock : ruleBlocksInOrder()) {
+      if (!(ruleBlock instanceof LocalRuleBlock)) {
+        return Optional.absent();
+      }
+      localRuleBlocksB.add((LocalRuleBlock) ruleBlock);
+      leftMargin += ((LocalRuleBlock) ruleBlock).leftReach();
+    }
+    final ImmutableList<LocalRuleBlock> localRuleBlocks = localRuleBlocksB.build();
+
+    return Optional.<ContextFreeCodePoints>of(new ContextFreeCodePoints(leftMargin) {
+      @Override
+      protected Decoding computeDecoding(final int codePoint) {
+        // we find the code point's edges by transliterating it on its own
+        final UnicodeFriendlyString s =
+            StringUtils.unicodeFriendly(new String(Character.toChars(codePoint)));
+        final Script.ScriptMapping scriptMapping = scriptMapper().mapStringToScripts(s);
+        final ImmutableSet<Script> scripts =
+            scriptMapping.scriptsForOffset(CharOffset.asCharOffset(0));
+        for (final LocalRuleBlock ruleBlock : localRuleBlocks) {
+          if (!ruleBlock.isContextFree(codePoint, scripts)) {
+            return null;
+          }
+        }
 
-    return chart.bestDecoding().or(s);
+        final TransliterationChart chart = newChart(s, scriptMapping, false);
+        applyRuleBlocks(chart);
+        final List<String> transliterations = new ArrayList<>();
+        final List<Double> scores = new ArrayList<>();
+        final TransliterationChart.EdgeCursor edges = chart.newCursor();
+        for (edges.startingAt(0); edges.next(); ) {
+          transliterations.add(edges.transliteration());
+          scores.add(edges.score());
+        }
+        return transliterations.isEmpty() ? null : new Decoding(
+            transliterations.toArray(new String[0]), Doubles.toArray(scores));
+      }
+    });
   }
 
   static class Builder extends ImmutableDefaultTransliterator.Builder {
@@ -1,8 +1,5 @@
 package com.bbn.serif.transliteration;
 
-import com.bbn.bue.common.UnicodeFriendlyString;
-import com.bbn.bue.common.strings.offsets.CharOffset;
-
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
 
@@ -11,25 +8,34 @@ import java.util.regex.Pattern;
 /**
  * Many diacritic marks can simply be deleted.
  */
-enum DiacriticDeletion implements DefaultTransliterator.TransliterationRuleBlock {
+enum DiacriticDeletion
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
   INSTANCE;
 
   public static final int DEFAULT_SEQUENCE_NUMBER = 20000;
 
   @Override
   public void applyToChart(final TransliterationChart chart) {
-    chart.string().processCodePoints(new UnicodeFriendlyString.NoResultCodePointProcessor() {
-      @Override
-      public void processCodepoint(final UnicodeFriendlyString s, final CharOffset codePointOffset,
-          final int codePoint) {
-        if (isDiacriticToDelete(codePoint)) {
-          chart.addEdge(new ChartEdge.Builder().startPosition(codePointOffset.asInt())
-              .endPosition(codePointOffset.asInt() + 1)
-              .spanTransliteration("")
-              .score(DELETE_DIACRITIC_SCORE).build(), DELETE_DIACRITIC_DERIVATION);
-        }
-      }
-    });
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    if (isDiacriticToDelete(codePoints[position])) {
+      edges.addEdge(position, position + 1, "", DELETE_DIACRITIC_SCORE,
+          DELETE_DIACRITIC_DERIVATION);
+    }
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return true;
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
   }
 
   private static final double DELETE_DIACRITIC_SCORE = 1.0;
@@ -43,12 +49,21 @@ enum DiacriticDeletion implements DefaultTransliterator.TransliterationRuleBlock
   private static final Pattern DIACRITIC_PATTERN = Pattern.compile("\\b("
       + OR_JOINER.join(DIACRITIC_WORDS) + ")\\b");
 
-  private boolean isDiacriticToDelete(final int codePoint) {
-    if (Character.getType(codePoint) == Character.NON_SPACING_MARK) {
-      final String codePointName = Character.getName(codePoint);
-      return codePointName != null && DIACRITIC_PATTERN.matcher(codePointName).find();
-    } else {
-      return false;
+  // 1 for diacritics to delete. Looking up and matching names is slow, so we only do it once per
+  // code point
+  private static final LazyCodePointTable DIACRITICS_TO_DELETE = new LazyCodePointTable() {
+    @Override
+    protected int computeValue(final int codePoint) {
+      if (Character.getType(codePoint) == Character.NON_SPACING_MARK) {
+        final String codePointName = Character.getName(codePoint);
+        return codePointName != null && DIACRITIC_PATTERN.matcher(codePointName).find() ? 1 : 0;
+      } else {
+        return 0;
+      }
     }
+  };
+
+  private boolean isDiacriticToDelete(final int codePoint) {
+    return DIACRITICS_TO_DELETE.get(codePoint) != 0;
   }
 }
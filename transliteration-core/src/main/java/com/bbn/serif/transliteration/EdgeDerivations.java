@@ -0,0 +1,136 @@
+package com.bbn.serif.transliteration;
+
+import java.util.Arrays;
+
+/**
+ * Records how each edge of a {@link TransliterationChart} came to be, for debugging.  Rather than
+ * building a string for every edge, we store the reason given for the edge together with
+ * pointers to the edges it was built from. The familiar nested text such as
+ * {@code "nukta [left: by character name]"} is only produced by {@link #render(int)}.
+ *
+ * Edges are identified by their chart IDs and must be recorded in increasing ID order.
+ *
+ * This object is mutable and not thread-safe.
+ */
+final class EdgeDerivations {
+
+  static final int NO_PARENT = -1;
+
+  /**
+   * The edge was derived from its parents, each rendered as {@code " [left: ...]"}.
+   */
+  static final byte EXTENDED = 0;
+  /**
+   * The edge merges two adjacent edges, rendered as {@code " [left:...][right: ...]"}.
+   */
+  static final byte MERGED = 1;
+
+  private int numEdges = 0;
+  private String[] reasons = new String[64];
+  private byte[] kinds = new byte[64];
+  // the parents of edge e are parents[firstParent[e]] to parents[firstParent[e] + numParents[e]]
+  private int[] firstParent = new int[64];
+  private int[] numParents = new int[64];
+  private int[] parents = new int[64];
+  private int numParentEntries = 0;
+
+  /**
+   * Records that {@code edge} was added for {@code reason} with no parents.
+   */
+  void record(final int edge, final String reason) {
+    startRecord(edge, reason, EXTENDED);
+  }
+
+  /**
+   * Records that {@code edge} was added for {@code reason} from {@code parent}, which may be
+   * {@link #NO_PARENT}.
+   */
+  void record(final int edge, final String reason, final byte kind, final int parent) {
+    startRecord(edge, reason, kind);
+    addParent(edge, parent);
+  }
+
+  /**
+   * Records that {@code edge} was added for {@code reason} from {@code leftParent} and
+   * {@code rightParent}, either of which may be {@link #NO_PARENT}.
+   */
+  void record(final int edge, final String reason, final byte kind, final int leftParent,
+      final int rightParent) {
+    startRecord(edge, reason, kind);
+    addParent(edge, leftParent);
+    addParent(edge, rightParent);
+  }
+
+  /**
+   * Records that {@code edge} was added for {@code reason} from the first {@code count} edges
+   * in {@code edgeParents}, any of which may be {@link #NO_PARENT}.
+   */
+  void record(final int edge, final String reason, final byte kind, final int[] edgeParents,
+      final int count) {
+    startRecord(edge, reason, kind);
+    for (int i = 0; i < count; ++i) {
+      addParent(edge, edgeParents[i]);
+    }
+  }
+
+  /**
+   * Forgets all derivations, keeping the storage for reuse.
+   */
+  void clear() {
+    Arrays.fill(reasons, 0, numEdges, null);
+    numEdges = 0;
+    numParentEntries = 0;
+  }
+
+  /**
+   * The text of {@code edge}'s derivation, or {@code null} if it has none.
+   */
+  String render(final int edge) {
+    if (edge < 0 || edge >= numEdges || reasons[edge] == null) {
+      return null;
+    }
+    final StringBuilder sb = new StringBuilder();
+    render(edge, sb);
+    return sb.toString();
+  }
+
+  private void render(final int edge, final StringBuilder sb) {
+    sb.append(reasons[edge]);
+    for (int i = 0; i < numParents[edge]; ++i) {
+      final int parent = parents[firstParent[edge] + i];
+      if (parent == NO_PARENT || reasons[parent] == null) {
+        continue;
+      }
+      if (kinds[edge] == MERGED) {
+        sb.append(i == 0 ? " [left:" : "[right: ");
+      } else {
+        sb.append(" [left: ");
+      }
+      render(parent, sb);
+      sb.append(']');
+    }
+  }
+
+  private void startRecord(final int edge, final String reason, final byte kind) {
+    if (edge >= reasons.length) {
+      final int newCapacity = Math.max(edge + 1, 2 * reasons.length);
+      reasons = Arrays.copyOf(reasons, newCapacity);
+      kinds = Arrays.copyOf(kinds, newCapacity);
+      firstParent = Arrays.copyOf(firstParent, newCapacity);
+      numParents = Arrays.copyOf(numParents, newCapacity);
+    }
+    reasons[edge] = reason;
+    kinds[edge] = kind;
+    firstParent[edge] = numParentEntries;
+    numParents[edge] = 0;
+    numEdges = Math.max(numEdges, edge + 1);
+  }
+
+  private void addParent(final int edge, final int parent) {
+    if (numParentEntries == parents.length) {
+      parents = Arrays.copyOf(parents, 2 * parents.length);
+    }
+    parents[numParentEntries++] = parent;
+    ++numParents[edge];
+  }
+}
@@ -0,0 +1,182 @@
+package com.bbn.serif.transliteration;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharSource;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Transliterates the syllables of the Ethiopic script as used by a particular language.
+ *
+ * The syllabary is laid out in rows of eight code points, one row per consonant, where the
+ * syllable at offset {@code i} in a row is the consonant followed by the vowel of the
+ * {@code i}-th order. We therefore only need the transliteration of each consonant, which is
+ * read from a per-language chart, and of each order's vowel. A few syllables which don't follow
+ * this pattern in a language are listed explicitly.
+ *
+ * Each chart line is {@code Ox}, the hexadecimal code point of a row's first syllable, the
+ * consonant's transliteration (which may be {@code ""}) and optionally the number of orders the
+ * row has in this language, if fewer than the language's vowels. Unassigned code points within
+ * those orders are skipped. Lines starting with {@code #} are comments.
+ */
+final class EthiopicSyllables
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
+
+  private static final int FIRST_SYLLABLE = 0x1200;
+  private static final int ORDERS_PER_ROW = 8;
+  // the syllables of the Ethiopic block end at U+135A, but the rest of the last row is unassigned
+  private static final int NUM_ROWS = (0x1360 - FIRST_SYLLABLE) / ORDERS_PER_ROW;
+
+  // same score as the language-specific single character mappings these used to be
+  private static final double ETHIOPIC_SYLLABLE_SCORE = 1.1 * 1.1 * 1.1;
+
+  private static final String AMHARIC = "amh";
+  private static final String TIGRINYA = "tir";
+
+  /**
+   * The ISO 639-2 codes of the languages we have Ethiopic syllable charts for.
+   */
+  static final ImmutableSet<String> LANGUAGES = ImmutableSet.of(AMHARIC, TIGRINYA);
+
+  private static final ImmutableMap<String, String> CHART_RESOURCES = ImmutableMap.of(
+      AMHARIC, "amharic_base_chart.txt",
+      TIGRINYA, "tigranya_base_chart.txt");
+
+  private static final ImmutableMap<String, ImmutableList<String>> ORDER_VOWELS =
+      ImmutableMap.of(
+          AMHARIC, ImmutableList.of("ä", "u", "i", "a", "e", "ï", "o", "ʷa"),
+          // we transcribe the sixth order here with "" instead of ə, see LDC grammar
+          TIGRINYA, ImmutableList.of("ä", "u", "i", "a", "e", "", "o"));
+
+  private static final ImmutableMap<String, ImmutableMap<Integer, String>> IRREGULAR_SYLLABLES =
+      ImmutableMap.of(
+          // the first order of the laryngeals is pronounced like the fourth
+          AMHARIC, ImmutableMap.<Integer, String>builder()
+              .put(0x1200, "ha")
+              .put(0x1210, "ha")
+              .put(0x1280, "ha")
+              .put(0x12A0, "a")
+              .put(0x12D0, "a")
+              // the eighth order glottal is used to write ä
+              .put(0x12A7, "ä")
+              .build(),
+          TIGRINYA, ImmutableMap.<Integer, String>of());
+
+  private static final Splitter ON_WHITESPACE = Splitter.onPattern("\\s+").omitEmptyStrings();
+
+  // indexed by row, null for rows this language doesn't handle
+  private final String[] consonants;
+  private final int[] numOrders;
+  private final String[] orderVowels;
+  // indexed by offset from FIRST_SYLLABLE, mostly null
+  private final String[] irregularSyllables;
+  private final String derivation;
+
+  private EthiopicSyllables(final String[] consonants, final int[] numOrders,
+      final String[] orderVowels, final String[] irregularSyllables, final String derivation) {
+    this.consonants = consonants;
+    this.numOrders = numOrders;
+    this.orderVowels = orderVowels;
+    this.irregularSyllables = irregularSyllables;
+    this.derivation = derivation;
+  }
+
+  /**
+   * Loads the rule block for {@code language}, which must be one of {@link #LANGUAGES}.
+   */
+  static EthiopicSyllables forLanguage(final String language) throws IOException {
+    checkArgument(LANGUAGES.contains(language), "No Ethiopic syllable chart for %s", language);
+    return loadFrom(Resources.asCharSource(
+        Resources.getResource(EthiopicSyllables.class, CHART_RESOURCES.get(language)), UTF_8),
+        ORDER_VOWELS.get(language), IRREGULAR_SYLLABLES.get(language), language);
+  }
+
+  static EthiopicSyllables loadFrom(final CharSource chart, final List<String> orderVowels,
+      final Map<Integer, String> irregularSyllables, final String language) throws IOException {
+    checkArgument(orderVowels.size() <= ORDERS_PER_ROW, "Too many orders: %s", orderVowels);
+    final String[] consonants = new String[NUM_ROWS];
+    final int[] numOrders = new int[NUM_ROWS];
+    for (final String line : chart.readLines()) {
+      if (URomanFileFormat.isCommentLine(line)) {
+        continue;
+      }
+      final List<String> fields = ON_WHITESPACE.splitToList(line);
+      checkArgument((fields.size() == 2 || fields.size() == 3) && fields.get(0).startsWith("Ox"),
+          "Malformed line in Ethiopic syllable chart: %s", line);
+      final int firstSyllable = Integer.parseInt(fields.get(0).substring(2), 16);
+      final int row = (firstSyllable - FIRST_SYLLABLE) / ORDERS_PER_ROW;
+      checkArgument(firstSyllable >= FIRST_SYLLABLE && row < NUM_ROWS
+              && (firstSyllable - FIRST_SYLLABLE) % ORDERS_PER_ROW == 0,
+          "Not the first syllable of an Ethiopic row: %s", line);
+      consonants[row] = fields.get(1).equals("\"\"") ? "" : fields.get(1);
+      numOrders[row] = fields.size() == 3 ? Integer.parseInt(fields.get(2)) : orderVowels.size();
+      checkArgument(numOrders[row] <= orderVowels.size(), "Too many orders: %s", line);
+    }
+
+    final String[] irregular = new String[NUM_ROWS * ORDERS_PER_ROW];
+    for (final Map.Entry<Integer, String> e : irregularSyllables.entrySet()) {
+      checkArgument(isEthiopicSyllable(e.getKey()), "Not an Ethiopic syllable: %s", e.getKey());
+      irregular[e.getKey() - FIRST_SYLLABLE] = e.getValue();
+    }
+    return new EthiopicSyllables(consonants, numOrders, orderVowels.toArray(new String[0]),
+        irregular, "by Ethiopic syllable decomposition [lang: " + language + "]");
+  }
+
+  @Override
+  public void applyToChart(final TransliterationChart chart) {
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    final String transliteration = transliterationOf(codePoints[position]);
+    if (transliteration != null) {
+      edges.addEdge(position, position + 1, transliteration, ETHIOPIC_SYLLABLE_SCORE, derivation);
+    }
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return true;
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
+  }
+
+  private static boolean isEthiopicSyllable(final int codePoint) {
+    return codePoint >= FIRST_SYLLABLE && codePoint < FIRST_SYLLABLE + NUM_ROWS * ORDERS_PER_ROW;
+  }
+
+  /**
+   * The transliteration of {@code codePoint} in this language, or {@code null} if it is not a
+   * syllable we know.
+   */
+  String transliterationOf(final int codePoint) {
+    // the labialized rows have gaps where the orders they lack would be
+    if (!isEthiopicSyllable(codePoint) || !Character.isDefined(codePoint)) {
+      return null;
+    }
+    final int offset = codePoint - FIRST_SYLLABLE;
+    if (irregularSyllables[offset] != null) {
+      return irregularSyllables[offset];
+    }
+    final int row = offset / ORDERS_PER_ROW;
+    final int order = offset % ORDERS_PER_ROW;
+    if (consonants[row] == null || order >= numOrders[row]) {
+      return null;
+    }
+    return consonants[row] + orderVowels[order];
+  }
+}
@@ -0,0 +1,47 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.TextGroupImmutable;
+
+import com.google.common.collect.ImmutableList;
+
+import org.immutables.value.Value;
+
+/**
+ * Applies several {@link DefaultTransliterator.IndependentRuleBlock}s in a single pass over the
+ * string: at each position, each rule block in turn adds its edges starting there. Since none of
+ * them look at the chart, this adds the same edges as applying them one after another. Afterwards
+ * the edges ending at each position are put back in the order separate passes would have added
+ * them, so later rule blocks see exactly the same chart.
+ */
+@TextGroupImmutable
+@Value.Immutable
+abstract class FusedIndependentRuleBlocks implements DefaultTransliterator.TransliterationRuleBlock {
+
+  /**
+   * The rule blocks to apply, in the order they would have been applied separately.
+   */
+  abstract ImmutableList<DefaultTransliterator.IndependentRuleBlock> ruleBlocks();
+
+  @Override
+  public void applyToChart(final TransliterationChart chart) {
+    final ImmutableList<DefaultTransliterator.IndependentRuleBlock> ruleBlocks = ruleBlocks();
+    final int[] codePoints = chart.codePoints();
+    final int length = chart.string().lengthInCodePoints();
+    final int firstEdge = chart.numEdges();
+    for (int position = 0; position < length; ++position) {
+      for (int i = 0; i < ruleBlocks.size(); ++i) {
+        final int firstEdgeOfStep = chart.numEdges();
+        ruleBlocks.get(i).addEdgesStartingAt(chart, codePoints, length, position);
+        chart.assignToGroup(firstEdgeOfStep, i);
+      }
+    }
+    chart.groupEdgesEndingAt(firstEdge, ruleBlocks.size());
+  }
+
+  public static FusedIndependentRuleBlocks of(
+      Iterable<? extends DefaultTransliterator.IndependentRuleBlock> ruleBlocks) {
+    return new Builder().ruleBlocks(ruleBlocks).build();
+  }
+
+  static class Builder extends ImmutableFusedIndependentRuleBlocks.Builder {}
+}
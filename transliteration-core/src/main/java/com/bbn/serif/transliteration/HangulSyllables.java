@@ -0,0 +1,77 @@
+package com.bbn.serif.transliteration;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Transliterates precomposed Hangul syllables by splitting them into their leading consonant,
+ * vowel and trailing consonant jamo.
+ *
+ * The Unicode name of each of the 11,172 syllables is built the same way from the short names of
+ * its jamo (e.g. {@code HANGUL SYLLABLE GAG}), and the character name rules of
+ * {@link TransliterateByUnicodeCharacterName} would reduce it to the lowercased short names. The
+ * JDK does not know these names, however, so we compute the syllable's jamo arithmetically as
+ * described in section 3.12 of the Unicode standard and look up their short names here instead.
+ */
+enum HangulSyllables
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
+  INSTANCE;
+
+  private static final int FIRST_SYLLABLE = 0xAC00;
+  private static final int NUM_VOWELS = 21;
+  private static final int NUM_TRAILS = 28;
+  private static final int SYLLABLES_PER_LEAD = NUM_VOWELS * NUM_TRAILS;
+  private static final int NUM_SYLLABLES = 19 * SYLLABLES_PER_LEAD;
+
+  // the Jamo_Short_Name values from Jamo.txt in the Unicode character database, lowercased
+  private static final String[] LEADS = {"g", "gg", "n", "d", "dd", "r", "m", "b", "bb", "s",
+      "ss", "", "j", "jj", "c", "k", "t", "p", "h"};
+  private static final String[] VOWELS = {"a", "ae", "ya", "yae", "eo", "e", "yeo", "ye", "o",
+      "wa", "wae", "oe", "yo", "u", "weo", "we", "wi", "yu", "eu", "yi", "i"};
+  private static final String[] TRAILS = {"", "g", "gg", "gs", "n", "nj", "nh", "d", "l", "lg",
+      "lm", "lb", "ls", "lt", "lp", "lh", "m", "b", "bs", "s", "ss", "ng", "j", "c", "k", "t",
+      "p", "h"};
+
+  // same score as character name transliterations, which these used to be
+  private static final double HANGUL_SYLLABLE_SCORE = 1.0;
+  private static final String DERIVED_BY_HANGUL_SYLLABLE = "by Hangul syllable decomposition";
+
+  @Override
+  public void applyToChart(final TransliterationChart chart) {
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    if (isHangulSyllable(codePoints[position])) {
+      edges.addEdge(position, position + 1, transliterationOf(codePoints[position]),
+          HANGUL_SYLLABLE_SCORE, DERIVED_BY_HANGUL_SYLLABLE);
+    }
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return true;
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
+  }
+
+  static boolean isHangulSyllable(final int codePoint) {
+    return codePoint >= FIRST_SYLLABLE && codePoint < FIRST_SYLLABLE + NUM_SYLLABLES;
+  }
+
+  /**
+   * The transliteration of {@code syllable}, which must be a precomposed Hangul syllable.
+   */
+  static String transliterationOf(final int syllable) {
+    final int syllableIndex = syllable - FIRST_SYLLABLE;
+    final String lead = LEADS[syllableIndex / SYLLABLES_PER_LEAD];
+    final String vowel = VOWELS[(syllableIndex % SYLLABLES_PER_LEAD) / NUM_TRAILS];
+    final String trail = TRAILS[syllableIndex % NUM_TRAILS];
+    return new StringBuilder(lead.length() + vowel.length() + trail.length())
+        .append(lead).append(vowel).append(trail).toString();
+  }
+}
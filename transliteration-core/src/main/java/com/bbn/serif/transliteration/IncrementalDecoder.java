@@ -0,0 +1,100 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the same best transliteration of a string as
+ * {@link TransliterationChart#appendBestDecoding(double, StringBuilder)} would, for strings to
+ * which only {@link DefaultTransliterator.IndependentRuleBlock}s apply, without building a chart.
+ *
+ * Decoding proceeds left to right. Once every position before {@code p} has been decoded, the
+ * best path to {@code p} is known, so only then are the edges starting at {@code p} asked for
+ * from the rule blocks, and each is used to extend that path as soon as it is added and then
+ * forgotten. Positions no path reaches are skipped without generating their edges at all.
+ *
+ * The chart keeps only the best of several edges with the same span and output and breaks ties
+ * in favor of the edge added first. Since an edge dropped or superseded this way is never
+ * strictly better than one kept, relaxing every edge in the order it is added, replacing the best
+ * path to a position only on a strictly better score, chooses the same path.
+ *
+ * This object is mutable and not thread-safe.
+ */
+final class IncrementalDecoder implements DefaultTransliterator.EdgeSink {
+
+  // indexed by position
+  private double[] bestScoreToPosition = new double[0];
+  private int[] bestStartToPosition = new int[0];
+  private String[] bestOutputToPosition = new String[0];
+  private int[] codePoints = new int[0];
+  private String[] path = new String[0];
+
+  // the path score to the position whose edges are being added
+  private double scoreToStart;
+
+  /**
+   * Appends the best transliteration of {@code s} by {@code ruleBlocks} to {@code out} and
+   * returns its score, where every path's score starts from {@code initialScore}. If there is no
+   * path, nothing is appended and {@link Double#NEGATIVE_INFINITY} is returned.
+   */
+  double decode(final List<DefaultTransliterator.IndependentRuleBlock> ruleBlocks,
+      final UnicodeFriendlyString s, final double initialScore, final StringBuilder out) {
+    final int length = s.lengthInCodePoints();
+    if (length == 0) {
+      return initialScore;
+    }
+    prepare(s, length);
+    bestScoreToPosition[0] = initialScore;
+
+    for (int start = 0; start < length; ++start) {
+      scoreToStart = bestScoreToPosition[start];
+      if (scoreToStart == Double.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int i = 0; i < ruleBlocks.size(); ++i) {
+        ruleBlocks.get(i).addEdgesStartingAt(this, codePoints, length, start);
+      }
+    }
+
+    if (bestScoreToPosition[length] > Double.NEGATIVE_INFINITY) {
+      int numSteps = 0;
+      for (int pos = length; pos > 0; pos = bestStartToPosition[pos]) {
+        path[numSteps++] = bestOutputToPosition[pos];
+      }
+      for (int i = numSteps - 1; i >= 0; --i) {
+        out.append(path[i]);
+      }
+    }
+    return bestScoreToPosition[length];
+  }
+
+  @Override
+  public void addEdge(final int startPosition, final int endPosition,
+      final String transliteration, final double score, final String derivation) {
+    final double pathScore = scoreToStart + score;
+    if (bestScoreToPosition[endPosition] < pathScore) {
+      bestScoreToPosition[endPosition] = pathScore;
+      bestStartToPosition[endPosition] = startPosition;
+      bestOutputToPosition[endPosition] = transliteration;
+    }
+  }
+
+  private void prepare(final UnicodeFriendlyString s, final int length) {
+    if (bestScoreToPosition.length < length + 1) {
+      bestScoreToPosition = new double[length + 1];
+      bestStartToPosition = new int[length + 1];
+      bestOutputToPosition = new String[length + 1];
+      codePoints = new int[length];
+      path = new String[length];
+    }
+    Arrays.fill(bestScoreToPosition, 0, length + 1, Double.NEGATIVE_INFINITY);
+    final String codeUnits = s.utf16CodeUnits();
+    for (int codeUnitOffset = 0, position = 0; codeUnitOffset < codeUnits.length(); ++position) {
+      final int codePoint = codeUnits.codePointAt(codeUnitOffset);
+      codePoints[position] = codePoint;
+      codeUnitOffset += Character.charCount(codePoint);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Applies a {@link SubstringMapper} of Han characters, such as uRoman's pinyin table, which is
+ * only loaded the first time a string containing a Han code point reaches it. Most inputs never
+ * contain one, and loading tens of thousands of mappings is a large part of building a
+ * transliterator.
+ *
+ * So that edges never depend on whether the mapper has been loaded yet, only mappings of a single
+ * Han code point are used: this rule block never adds edges starting at any other code point, and
+ * needs no context. Even so, Han code points are not reported as context-free until the mappings
+ * are loaded, because the transliterator works out the edges of context-free code points a block
+ * of 256 at a time, and blocks such as CJK punctuation and kana contain a few Han code points. A
+ * string without a Han character in it must never load the mappings. Once they are loaded, blocks
+ * worked out from then on use the fast path for Han code points too, while those worked out
+ * earlier keep handling them with a chart, which gives the same edges.
+ *
+ * Only the compiled {@link SubstringMappingAutomaton} is kept once loaded, not the
+ * {@link SubstringMapper} it was compiled from, since that holds an object per mapping.
+ *
+ * This object is thread-safe: the mapper is loaded at most once, however many threads reach it.
+ */
+final class LazyCJKMapper
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
+
+  private static final Logger log = LoggerFactory.getLogger(LazyCJKMapper.class);
+
+  private final SubstringMapper.URomanSubstringMappingsLoader loader;
+  private final CharSource source;
+  private final boolean keepDerivations;
+  // null until loaded by automaton()
+  private volatile SubstringMappingAutomaton automaton = null;
+
+  private LazyCJKMapper(final SubstringMapper.URomanSubstringMappingsLoader loader,
+      final CharSource source, final boolean keepDerivations) {
+    this.loader = loader;
+    this.source = source;
+    this.keepDerivations = keepDerivations;
+  }
+
+  /**
+   * A rule block which loads uRoman's CJK mappings from {@code source} using {@code loader} when
+   * first needed. See {@link MergedSubstringMappers#keepDerivations()} for
+   * {@code keepDerivations}.
+   */
+  static LazyCJKMapper loadingURomanCJKMappings(
+      final SubstringMapper.URomanSubstringMappingsLoader loader, final CharSource source,
+      final boolean keepDerivations) {
+    return new LazyCJKMapper(loader, source, keepDerivations);
+  }
+
+  /**
+   * Whether the mappings have been loaded yet.
+   */
+  boolean isLoaded() {
+    return automaton != null;
+  }
+
+  private SubstringMappingAutomaton automaton() {
+    SubstringMappingAutomaton ret = automaton;
+    if (ret == null) {
+      synchronized (this) {
+        ret = automaton;
+        if (ret == null) {
+          log.info("Loading CJK transliterations from {}", source);
+          try {
+            ret = SubstringMappingAutomaton.compile(ImmutableList.of(
+                singleHanCodePointMappings(loader.loadURomanCJKMappings(source))),
+                keepDerivations);
+          } catch (IOException e) {
+            throw new RuntimeException("Could not load CJK transliterations from " + source, e);
+          }
+          automaton = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public void applyToChart(final TransliterationChart chart) {
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    if (isHan(codePoints[position])) {
+      automaton().addMatchesStartingAt(edges, codePoints, length, position);
+    }
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return isLoaded() || !isHan(codePoint);
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
+  }
+
+  private static boolean isHan(final int codePoint) {
+    return Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HAN;
+  }
+
+  private static SubstringMapper singleHanCodePointMappings(final SubstringMapper mapper) {
+    final SubstringMapper.Builder ret = new SubstringMapper.Builder();
+    int numSkipped = 0;
+    for (final Map.Entry<UnicodeFriendlyString, SubstringMapper.SubstringMapping> e
+        : mapper.stringMappings().entries()) {
+      final UnicodeFriendlyString pattern = e.getKey();
+      if (pattern.lengthInCodePoints() == 1 && isHan(pattern.utf16CodeUnits().codePointAt(0))) {
+        ret.putStringMappings(pattern, e.getValue());
+      } else {
+        ++numSkipped;
+      }
+    }
+    if (numSkipped > 0) {
+      log.warn("Skipped {} CJK mappings which are not of a single Han character", numSkipped);
+    }
+    return ret.build();
+  }
+}
@@ -0,0 +1,56 @@
+package com.bbn.serif.transliteration;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A total map from Unicode code points to {@code int}s which is filled in lazily, one block of
+ * 256 consecutive code points at a time, by {@link #computeValue(int)}.  Once a block is
+ * computed it is never evicted, so each lookup after the first in a block is two array reads.
+ *
+ * Most text only touches a handful of blocks, so this avoids both computing values for the whole
+ * code space up front and the boxing and eviction of a general-purpose cache.
+ *
+ * This class is thread-safe provided {@link #computeValue(int)} is a pure function. Two threads
+ * may race to compute the same block, in which case they compute identical values.
+ */
+abstract class LazyCodePointTable {
+
+  private static final int BLOCK_BITS = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+  private static final int NUM_BLOCKS = (Character.MAX_CODE_POINT + 1) >>> BLOCK_BITS;
+
+  // blocks where every value is 0 (e.g. unassigned code points) are shared
+  private static final int[] ZERO_BLOCK = new int[BLOCK_SIZE];
+
+  private final AtomicReferenceArray<int[]> blocks = new AtomicReferenceArray<>(NUM_BLOCKS);
+
+  /**
+   * The value for {@code codePoint}, which must be a valid code point.
+   */
+  final int get(final int codePoint) {
+    final int blockIdx = codePoint >>> BLOCK_BITS;
+    int[] block = blocks.get(blockIdx);
+    if (block == null) {
+      block = computeBlock(blockIdx);
+      blocks.set(blockIdx, block);
+    }
+    return block[codePoint & BLOCK_MASK];
+  }
+
+  /**
+   * Computes the value for {@code codePoint}.  This will be called at most once per code point
+   * except when threads race.
+   */
+  protected abstract int computeValue(int codePoint);
+
+  private int[] computeBlock(final int blockIdx) {
+    final int[] block = new int[BLOCK_SIZE];
+    final int firstCodePoint = blockIdx << BLOCK_BITS;
+    for (int i = 0; i < BLOCK_SIZE; ++i) {
+      block[i] = computeValue(firstCodePoint + i);
+    }
+    return Arrays.equals(block, ZERO_BLOCK) ? ZERO_BLOCK : block;
+  }
+}
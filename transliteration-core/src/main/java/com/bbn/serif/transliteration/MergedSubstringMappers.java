@@ -0,0 +1,76 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.TextGroupImmutable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.immutables.value.Value;
+
+/**
+ * Applies several {@link SubstringMapper}s as a single rule block.  All their patterns are compiled
+ * into one {@link SubstringMappingAutomaton}, so the input is scanned once rather than once per
+ * mapper.  The edges added are the same, and in the same order for any given span, as applying
+ * {@link #mappers()} one after another, except that derivations may be dropped (see
+ * {@link #keepDerivations()}).
+ */
+@TextGroupImmutable
+@Value.Immutable
+abstract class MergedSubstringMappers
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
+
+  /**
+   * The mappers to apply, in the order they would have been applied separately.
+   */
+  abstract ImmutableList<SubstringMapper> mappers();
+
+  /**
+   * Whether edges take the comments of their mappings as derivations. Set this to false when
+   * derivations are not tracked, so the compiled mappers don't refer to the comments. To not hold
+   * the comments at all, load the mappers without them (see
+   * {@link SubstringMapper.URomanSubstringMappingsLoader#keepComments()}). Defaults to true.
+   */
+  @Value.Default
+  boolean keepDerivations() {
+    return true;
+  }
+
+  @Value.Lazy
+  SubstringMappingAutomaton automaton() {
+    return SubstringMappingAutomaton.compile(mappers(), keepDerivations());
+  }
+
+  @Override
+  public void applyToChart(final TransliterationChart chart) {
+    automaton().addMatchesToChart(chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    automaton().addMatchesStartingAt(edges, codePoints, length, position);
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return !automaton().isInLongerPattern(codePoint);
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
+  }
+
+  public static MergedSubstringMappers of(Iterable<SubstringMapper> mappers) {
+    return new Builder().mappers(mappers).build();
+  }
+
+  /**
+   * A copy of this block which additionally applies {@code mapper} after all the current mappers.
+   */
+  public MergedSubstringMappers withAdditionalMapper(SubstringMapper mapper) {
+    return new Builder().from(this).addMappers(mapper).build();
+  }
+
+  static class Builder extends ImmutableMergedSubstringMappers.Builder {}
+}
@@ -0,0 +1,206 @@
+package com.bbn.serif.transliteration;
+
+import java.util.Arrays;
+
+/**
+ * Interns the output strings of a {@link TransliterationChart}'s edges, assigning each distinct
+ * string a small {@code int} ID. IDs are assigned consecutively from zero in order of first
+ * appearance.
+ *
+ * Rules which inspect the outputs of edges, such as {@link AbugidaRules} and
+ * {@link SchwaDeletion}, often ask the same questions about the same string many times, so the
+ * answers are computed once per string the first time they are needed and kept with it: a
+ * string's {@link #features(int)} and its split into a consonant part and a final vowel part.
+ *
+ * This object is mutable and not thread-safe.
+ */
+final class OutputStringTable {
+
+  private static final int EMPTY_SLOT = -1;
+
+  /**
+   * The string consists of one or more of the Latin consonants {@code bcdfghjklmnpqrstvwxyz}.
+   */
+  static final int LATIN_CONSONANTS = 1;
+  /**
+   * The string ends with one of the Latin vowels {@code aeiou}.
+   */
+  static final int ENDS_WITH_VOWEL = 1 << 1;
+  /**
+   * The string contains a letter {@code a-z} or {@code A-Z}.
+   */
+  static final int HAS_ROMAN_LETTER = 1 << 2;
+  /**
+   * The string contains no line terminator, so a regular expression {@code .} can match each of
+   * its characters.
+   */
+  static final int ONE_LINE = 1 << 3;
+
+  private static final int FEATURES_NOT_COMPUTED = -1;
+  private static final String LATIN_CONSONANT_CHARS = "bcdfghjklmnpqrstvwxyz";
+  private static final String LATIN_VOWEL_CHARS = "aeiou";
+
+  private String[] strings = new String[16];
+  // indexed by ID, filled in lazily by computeFeatures
+  private int[] features = new int[16];
+  private String[] consonantParts = new String[16];
+  private String[] vowelParts = new String[16];
+  private int size = 0;
+  // open-addressing hash table of IDs
+  private int[] slots = newSlots(32);
+
+  /**
+   * Returns the ID of {@code s}, assigning it a new ID if it has not been seen before.
+   */
+  int intern(final String s) {
+    final int mask = slots.length - 1;
+    int slot = hash(s) & mask;
+    while (slots[slot] != EMPTY_SLOT) {
+      final String candidate = strings[slots[slot]];
+      if (candidate == s || candidate.equals(s)) {
+        return slots[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    final int id = size++;
+    if (id == strings.length) {
+      strings = Arrays.copyOf(strings, 2 * strings.length);
+      features = Arrays.copyOf(features, strings.length);
+      consonantParts = Arrays.copyOf(consonantParts, strings.length);
+      vowelParts = Arrays.copyOf(vowelParts, strings.length);
+    }
+    strings[id] = s;
+    features[id] = FEATURES_NOT_COMPUTED;
+    slots[slot] = id;
+    if (2 * size > slots.length) {
+      rehash(2 * slots.length);
+    }
+    return id;
+  }
+
+  /**
+   * Forgets all strings, keeping the table's storage for reuse.
+   */
+  void clear() {
+    // only the slots of our strings are emptied, since the table may be far larger than the
+    // strings seen since the last clear need. Emptying a slot may cut the probe sequence of a
+    // later ID, so we look for each ID itself rather than stopping at the first empty slot.
+    final int mask = slots.length - 1;
+    for (int id = 0; id < size; ++id) {
+      int slot = hash(strings[id]) & mask;
+      while (slots[slot] != id) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = EMPTY_SLOT;
+    }
+    Arrays.fill(strings, 0, size, null);
+    Arrays.fill(consonantParts, 0, size, null);
+    Arrays.fill(vowelParts, 0, size, null);
+    size = 0;
+  }
+
+  String get(final int id) {
+    return strings[id];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * The flags among {@link #LATIN_CONSONANTS}, {@link #ENDS_WITH_VOWEL},
+   * {@link #HAS_ROMAN_LETTER} and {@link #ONE_LINE} which hold for the string with ID {@code id}.
+   */
+  int features(final int id) {
+    if (features[id] == FEATURES_NOT_COMPUTED) {
+      computeFeatures(id);
+    }
+    return features[id];
+  }
+
+  /**
+   * If the string with ID {@code id} is a line ending with a Latin consonant followed by one or
+   * more Latin vowels, everything up to and including that consonant. Otherwise {@code null}.
+   */
+  String consonantPart(final int id) {
+    if (features[id] == FEATURES_NOT_COMPUTED) {
+      computeFeatures(id);
+    }
+    return consonantParts[id];
+  }
+
+  /**
+   * The vowels following {@link #consonantPart(int)}, or {@code null} if it is {@code null}.
+   */
+  String vowelPart(final int id) {
+    if (features[id] == FEATURES_NOT_COMPUTED) {
+      computeFeatures(id);
+    }
+    return vowelParts[id];
+  }
+
+  private void computeFeatures(final int id) {
+    final String s = strings[id];
+    final int length = s.length();
+    int ret = ONE_LINE;
+    boolean allLatinConsonants = length > 0;
+    for (int i = 0; i < length; ++i) {
+      final char c = s.charAt(i);
+      if (isLineTerminator(c)) {
+        ret &= ~ONE_LINE;
+      }
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+        ret |= HAS_ROMAN_LETTER;
+      }
+      if (LATIN_CONSONANT_CHARS.indexOf(c) < 0) {
+        allLatinConsonants = false;
+      }
+    }
+    if (allLatinConsonants) {
+      ret |= LATIN_CONSONANTS;
+    }
+
+    int vowelStart = length;
+    while (vowelStart > 0 && LATIN_VOWEL_CHARS.indexOf(s.charAt(vowelStart - 1)) >= 0) {
+      --vowelStart;
+    }
+    if (vowelStart < length) {
+      ret |= ENDS_WITH_VOWEL;
+      if ((ret & ONE_LINE) != 0 && vowelStart > 0
+          && LATIN_CONSONANT_CHARS.indexOf(s.charAt(vowelStart - 1)) >= 0) {
+        consonantParts[id] = s.substring(0, vowelStart);
+        vowelParts[id] = s.substring(vowelStart);
+      }
+    }
+    features[id] = ret;
+  }
+
+  // the characters a regular expression . doesn't match by default
+  private static boolean isLineTerminator(final char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  private void rehash(final int newNumSlots) {
+    slots = newSlots(newNumSlots);
+    final int mask = newNumSlots - 1;
+    for (int id = 0; id < size; ++id) {
+      int slot = hash(strings[id]) & mask;
+      while (slots[slot] != EMPTY_SLOT) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id;
+    }
+  }
+
+  private static int hash(final String s) {
+    final int h = s.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int[] newSlots(final int numSlots) {
+    final int[] ret = new int[numSlots];
+    Arrays.fill(ret, EMPTY_SLOT);
+    return ret;
+  }
+}
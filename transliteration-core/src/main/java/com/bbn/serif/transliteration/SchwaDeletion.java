@@ -1,76 +1,105 @@
 package com.bbn.serif.transliteration;
 
-import com.bbn.bue.common.UnicodeFriendlyString;
 import com.bbn.bue.common.strings.offsets.CharOffset;
 
-import com.google.common.collect.ImmutableList;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import com.google.common.collect.ImmutableSet;
 
 /**
  * Many Indo-Aryan languages delete the final schwa of words.
  * Hindi also appears to do this word-medially in some cases but uroman doesn't appear to handle it,
  * and for the moment neither do we.
  */
-enum SchwaDeletion implements DefaultTransliterator.TransliterationRuleBlock {
+enum SchwaDeletion
+    implements DefaultTransliterator.ScriptSpecificRuleBlock, DefaultTransliterator.LocalRuleBlock {
   INSTANCE;
 
   public static final int DEFAULT_SEQUENCE_NUMBER = 40000;
 
   private static final double SCHWA_DELETION_BONUS = 0.25;
 
+  @Override
+  public boolean mayApplyTo(final Script.ScriptMapping scriptMapping) {
+    return isDevanagari(scriptMapping.scriptsPresent());
+  }
+
   @Override
   public void applyToChart(final TransliterationChart chart) {
     final Script.ScriptMapping scriptMapping = chart.scriptMapping();
+    final TransliterationChart.EdgeCursor outer = chart.newCursor();
+    final TransliterationChart.EdgeCursor inner = chart.newCursor();
+    final int length = chart.string().lengthInCodePoints();
 
-    chart.string().processCodePoints(new UnicodeFriendlyString.NoResultCodePointProcessor() {
-      @Override
-      public void processCodepoint(final UnicodeFriendlyString s, final CharOffset codePointOffset,
-          final int codePoint) {
-        if (scriptMapping.isDevanagari(codePointOffset)) {
-          final CharOffset nextCharacter = codePointOffset.shiftedCopy(1);
-          if (nextCharacter.asInt() < s.lengthInCodePoints()) {
-            final boolean applySchwaDeletion = !scriptMapping.isDevanagari(nextCharacter)
-                || isSchwaDeletionBoundary(chart, nextCharacter);
-            if (applySchwaDeletion) {
-              applySchwaDeletionToPosition(chart, codePointOffset);
-            }
-          }
+    // only characters which may be Devanagari can have their schwas deleted
+    for (final Script.ScriptRun scriptRun : scriptMapping.scriptRuns()) {
+      if (!isDevanagari(scriptRun)) {
+        continue;
+      }
+      for (int position = scriptRun.startPosition(); position < scriptRun.endPosition();
+           ++position) {
+        final CharOffset codePointOffset = CharOffset.asCharOffset(position);
+        final CharOffset nextCharacter = codePointOffset.shiftedCopy(1);
+        // the last character of the string always ends a word
+        final boolean applySchwaDeletion = nextCharacter.asInt() >= length
+            || !scriptMapping.isDevanagari(nextCharacter)
+            || isSchwaDeletionBoundary(outer, nextCharacter);
+        if (applySchwaDeletion) {
+          applySchwaDeletionToPosition(chart, outer, inner, codePointOffset);
         }
       }
-    });
-    if (!chart.string().isEmpty()) {
-      final CharOffset lastCharacter = CharOffset.asCharOffset(chart.string().lengthInCodePoints() - 1);
-      if (scriptMapping.isDevanagari(lastCharacter)) {
-        applySchwaDeletionToPosition(chart, lastCharacter);
+    }
+  }
+
+  /**
+   * Schwa deletion combines the edge before a Devanagari character with the edges ending just
+   * before that one, so it may reach one code point further left.
+   */
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return !isDevanagari(scripts);
+  }
+
+  @Override
+  public int leftReach() {
+    return 1;
+  }
+
+  private static boolean isDevanagari(final Script.ScriptRun scriptRun) {
+    return isDevanagari(scriptRun.scripts());
+  }
+
+  private static boolean isDevanagari(final Iterable<Script> scripts) {
+    for (final Script script : scripts) {
+      if (isDevanagari(script)) {
+        return true;
       }
     }
+    return false;
+  }
+
+  private static boolean isDevanagari(final Script script) {
+    return script.primaryName().equals("Devanagari");
   }
 
-  private static final Pattern CONSONANT_VOWEL_PATTERN = Pattern.compile(
-      "^(.*[bcdfghjklmnpqrstvwxyz])([aeiou]+)$");
-  private static final Pattern ENDS_WITH_VOWEL = Pattern.compile(".*[aeiou]$");
+  // the strings the regular expression .*[aeiou] matches
+  private static final int ENDS_WITH_VOWEL =
+      OutputStringTable.ENDS_WITH_VOWEL | OutputStringTable.ONE_LINE;
 
   private void applySchwaDeletionToPosition(final TransliterationChart chart,
+      final TransliterationChart.EdgeCursor precedingEdge,
+      final TransliterationChart.EdgeCursor precedingPrecedingEdge,
       final CharOffset codePointOffset) {
-    for (final ChartEdge precedingEdge : chart.edgesEndingAt(codePointOffset.asInt() + 1)) {
-      final Matcher consonantVowelMatcher =
-          CONSONANT_VOWEL_PATTERN.matcher(precedingEdge.spanTransliteration());
-      if (consonantVowelMatcher.matches()) {
-        final String vowel = consonantVowelMatcher.group(2);
+    for (precedingEdge.endingAt(codePointOffset.asInt() + 1); precedingEdge.next(); ) {
+      final String consonantPart = precedingEdge.consonantPart();
+      if (consonantPart != null) {
+        final String vowel = precedingEdge.vowelPart();
         if (vowel.equals("a")) {
-          for (final ChartEdge precedingPrecedingEdge : chart
-              .edgesEndingAt(precedingEdge.startPosition())) {
-            if (ENDS_WITH_VOWEL.matcher(precedingPrecedingEdge.spanTransliteration()).matches()) {
-              final String consonantPart = consonantVowelMatcher.group(1);
-              chart.addDerived(ImmutableList.of(precedingPrecedingEdge, precedingEdge),
-                  new ChartEdge.Builder()
-                      .startPosition(precedingPrecedingEdge.startPosition())
-                      .endPosition(precedingEdge.endPosition())
-                      .score(precedingPrecedingEdge.score() + precedingEdge.score() + SCHWA_DELETION_BONUS)
-                      .spanTransliteration(precedingPrecedingEdge.spanTransliteration() + consonantPart)
-                      .build(), "schwa-deletion");
+          for (precedingPrecedingEdge.endingAt(precedingEdge.start());
+               precedingPrecedingEdge.next(); ) {
+            if (precedingPrecedingEdge.hasFeatures(ENDS_WITH_VOWEL)) {
+              chart.addDerived(precedingPrecedingEdge.edge(), precedingEdge.edge(),
+                  precedingPrecedingEdge.transliteration() + consonantPart,
+                  precedingPrecedingEdge.score() + precedingEdge.score() + SCHWA_DELETION_BONUS,
+                  "schwa-deletion");
             }
           }
         }
@@ -78,11 +107,10 @@ enum SchwaDeletion implements DefaultTransliterator.TransliterationRuleBlock {
     }
   }
 
-  private static final Pattern ROMAN_LETTERS = Pattern.compile("[a-zA-Z]+");
-  private boolean isSchwaDeletionBoundary(final TransliterationChart chart,
+  private boolean isSchwaDeletionBoundary(final TransliterationChart.EdgeCursor edge,
       final CharOffset codePointOffset) {
-    for (final ChartEdge edge : chart.edgesIncluding(codePointOffset.asInt())) {
-      if (ROMAN_LETTERS.matcher(edge.spanTransliteration()).find()) {
+    for (edge.including(codePointOffset.asInt()); edge.next(); ) {
+      if (edge.hasFeatures(OutputStringTable.HAS_ROMAN_LETTER)) {
         return false;
       }
     }
@@ -10,10 +10,9 @@ import com.bbn.bue.common.strings.offsets.CharOffset;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Ordering;
@@ -26,11 +25,11 @@ import org.immutables.func.Functional;
 import org.immutables.value.Value;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import static com.bbn.bue.common.StringUtils.pipeJoiner;
@@ -143,6 +142,53 @@ abstract class Script {
      * bit of a hack and schould get cleaned up by issue #11.
      */
     boolean isDevanagari(CharOffset codePointOffset);
+
+    /**
+     * The string divided into maximal runs of consecutive characters with the same possible
+     * scripts, in order. Characters not known to belong to any script form runs with no scripts.
+     */
+    ImmutableList<ScriptRun> scriptRuns();
+
+    /**
+     * All scripts any character of the string may come from.
+     */
+    ImmutableSet<Script> scriptsPresent();
+  }
+
+  /**
+   * A maximal run of consecutive characters of a string which have the same set of possible
+   * scripts. See {@link ScriptMapping#scriptRuns()}.
+   */
+  @TextGroupImmutable
+  @Value.Immutable
+  static abstract class ScriptRun {
+
+    /**
+     * The code point offset of the first character of the run.
+     */
+    abstract int startPosition();
+
+    /**
+     * The code point offset just past the last character of the run.
+     */
+    abstract int endPosition();
+
+    abstract ImmutableSet<Script> scripts();
+
+    @Value.Check
+    protected void check() {
+      checkArgument(endPosition() > startPosition());
+    }
+
+    static class Builder extends ImmutableScript.ScriptRun.Builder {}
+  }
+
+  private static ImmutableSet<Script> scriptsPresent(Iterable<ScriptRun> scriptRuns) {
+    final ImmutableSet.Builder<Script> ret = ImmutableSet.builder();
+    for (final ScriptRun scriptRun : scriptRuns) {
+      ret.addAll(scriptRun.scripts());
+    }
+    return ret.build();
   }
 
   /**
@@ -205,11 +251,26 @@ abstract class Script {
 
     @Override
     public final ImmutableSet<Script> scriptsForCodepoint(int codePoint) {
-      try {
-        return cache.get(codePoint);
-      } catch (ExecutionException e) {
-        throw new RuntimeException(e.getCause());
+      return scriptSetTable().scriptsForCodepoint(codePoint);
+    }
+
+    @Value.Lazy
+    ScriptSetTable scriptSetTable() {
+      return new ScriptSetTable(scriptsByName());
+    }
+
+    @Override
+    public final ScriptMapping mapStringToScripts(UnicodeFriendlyString s) {
+      final ScriptSetTable table = scriptSetTable();
+      final String codeUnits = s.utf16CodeUnits();
+      final int[] scriptSetIds = new int[s.lengthInCodePoints()];
+      for (int codeUnitOffset = 0, codePointOffset = 0; codeUnitOffset < codeUnits.length();
+           ++codePointOffset) {
+        final int codePoint = codeUnits.codePointAt(codeUnitOffset);
+        scriptSetIds[codePointOffset] = table.scriptSetId(codePoint);
+        codeUnitOffset += Character.charCount(codePoint);
       }
+      return new CompactScriptMapping(s, table, scriptSetIds);
     }
 
     /**
@@ -233,34 +294,237 @@ abstract class Script {
 
     }
 
-    private final LoadingCache<Integer, ImmutableSet<Script>> cache = CacheBuilder.newBuilder()
-        .maximumSize(10000).build(new CacheLoader<Integer, ImmutableSet<Script>>() {
-          @Override
-          public ImmutableSet<Script> load(final Integer codePoint) throws Exception {
-            return scriptsForCodepointInternal(codePoint);
-          }
-        });
-
     private static final ImmutableSet<String> SUFFIXES_TO_STRIP = ImmutableSet.of(
         "CONSONANT", "LETTER", "LIGATURE", "SIGN", "SYLLABLE", "SYLLABICS", "VOWEL");
     private static final Pattern STRIP_SUFFIXES_PATTERN = Pattern.compile("\\s+("
         + pipeJoiner().join(SUFFIXES_TO_STRIP) + ")\\b.*");
     private static final Pattern DELETE_FINAL_WORD_PATTERN = Pattern.compile("\\s*\\S+\\s*$");
 
-    private ImmutableSet<Script> scriptsForCodepointInternal(final int codePoint) {
-      String charName = Character.getName(codePoint);
-      if (charName == null) {
-        return ImmutableSet.of();
+    /**
+     * The script sets of all code points, identified by small {@code int} IDs. ID 0 is always
+     * the empty set.  The script set of a code point is found by stripping words from the end of
+     * its Unicode name until it matches a script name. This is only done once per code point and
+     * the result is never evicted.
+     *
+     * The properties {@link ScriptMapping} needs of each script set are precomputed and indexed
+     * by ID as well.
+     */
+    static final class ScriptSetTable extends LazyCodePointTable {
+
+      static final int NO_SCRIPTS = 0;
+
+      private final ImmutableList<ImmutableSet<Script>> scriptSets;
+      private final ImmutableMap<String, Integer> scriptSetIdsByName;
+      // scriptBits[id] has bit i set if the script set contains the i-th script of all sets
+      private final long[][] scriptBits;
+      private final boolean[] containsDevanagari;
+      private final ImmutableList<ImmutableSet<String>> abugidaDefaultVowels;
+      private final ImmutableList<Optional<String>> primaryDefaultVowels;
+
+      private ScriptSetTable(ImmutableSetMultimap<String, Script> scriptsByName) {
+        final Map<ImmutableSet<Script>, Integer> idsByScriptSet = new LinkedHashMap<>();
+        idsByScriptSet.put(ImmutableSet.<Script>of(), NO_SCRIPTS);
+        final ImmutableMap.Builder<String, Integer> scriptSetIdsByName = ImmutableMap.builder();
+        for (final String name : scriptsByName.keySet()) {
+          final ImmutableSet<Script> scriptSet = scriptsByName.get(name);
+          Integer id = idsByScriptSet.get(scriptSet);
+          if (id == null) {
+            id = idsByScriptSet.size();
+            idsByScriptSet.put(scriptSet, id);
+          }
+          scriptSetIdsByName.put(name, id);
+        }
+        this.scriptSets = ImmutableList.copyOf(idsByScriptSet.keySet());
+        this.scriptSetIdsByName = scriptSetIdsByName.build();
+
+        final Map<Script, Integer> scriptIndices = new LinkedHashMap<>();
+        for (final ImmutableSet<Script> scriptSet : scriptSets) {
+          for (final Script script : scriptSet) {
+            if (!scriptIndices.containsKey(script)) {
+              scriptIndices.put(script, scriptIndices.size());
+            }
+          }
+        }
+        final int numWords = (scriptIndices.size() + Long.SIZE - 1) / Long.SIZE;
+        this.scriptBits = new long[scriptSets.size()][numWords];
+        this.containsDevanagari = new boolean[scriptSets.size()];
+        final ImmutableList.Builder<ImmutableSet<String>> abugidaDefaultVowels =
+            ImmutableList.builder();
+        final ImmutableList.Builder<Optional<String>> primaryDefaultVowels =
+            ImmutableList.builder();
+        for (int id = 0; id < scriptSets.size(); ++id) {
+          final ImmutableSet.Builder<String> vowels = ImmutableSet.builder();
+          Optional<String> primaryDefaultVowel = Optional.absent();
+          for (final Script script : scriptSets.get(id)) {
+            final int scriptIdx = scriptIndices.get(script);
+            scriptBits[id][scriptIdx / Long.SIZE] |= 1L << (scriptIdx % Long.SIZE);
+            if (script.primaryName().equals("Devanagari")) {
+              containsDevanagari[id] = true;
+            }
+            vowels.addAll(script.allAbugidaDefaultVowels());
+            if (!primaryDefaultVowel.isPresent()) {
+              primaryDefaultVowel = script.primaryAbugidaDefaultVowel();
+            }
+          }
+          abugidaDefaultVowels.add(vowels.build());
+          primaryDefaultVowels.add(primaryDefaultVowel);
+        }
+        this.abugidaDefaultVowels = abugidaDefaultVowels.build();
+        this.primaryDefaultVowels = primaryDefaultVowels.build();
       }
-      charName = STRIP_SUFFIXES_PATTERN.matcher(charName).replaceAll("");
-      while (!charName.isEmpty()) {
-        if (scriptsByName().containsKey(charName)) {
-          return scriptsByName().get(charName);
-        } else {
-          charName = DELETE_FINAL_WORD_PATTERN.matcher(charName).replaceAll("");
+
+      boolean intersect(int scriptSetId1, int scriptSetId2) {
+        if (scriptSetId1 == scriptSetId2) {
+          return scriptSetId1 != NO_SCRIPTS;
         }
+        final long[] bits1 = scriptBits[scriptSetId1];
+        final long[] bits2 = scriptBits[scriptSetId2];
+        for (int i = 0; i < bits1.length; ++i) {
+          if ((bits1[i] & bits2[i]) != 0) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      boolean containsDevanagari(int scriptSetId) {
+        return containsDevanagari[scriptSetId];
+      }
+
+      /**
+       * The union of the abugida default vowels of all scripts in the set.
+       */
+      ImmutableSet<String> abugidaDefaultVowels(int scriptSetId) {
+        return abugidaDefaultVowels.get(scriptSetId);
+      }
+
+      /**
+       * The primary abugida default vowel of the first script in the set which has one.
+       */
+      Optional<String> primaryDefaultVowel(int scriptSetId) {
+        return primaryDefaultVowels.get(scriptSetId);
+      }
+
+      ImmutableSet<Script> scriptsForCodepoint(int codePoint) {
+        return scriptSets.get(scriptSetId(codePoint));
       }
-      return ImmutableSet.of();
+
+      int scriptSetId(int codePoint) {
+        return get(codePoint);
+      }
+
+      /**
+       * All script sets, indexed by their IDs.
+       */
+      ImmutableList<ImmutableSet<Script>> scriptSets() {
+        return scriptSets;
+      }
+
+      @Override
+      protected int computeValue(final int codePoint) {
+        String charName = Character.getName(codePoint);
+        if (charName == null) {
+          return NO_SCRIPTS;
+        }
+        charName = STRIP_SUFFIXES_PATTERN.matcher(charName).replaceAll("");
+        while (!charName.isEmpty()) {
+          final Integer scriptSetId = scriptSetIdsByName.get(charName);
+          if (scriptSetId != null) {
+            return scriptSetId;
+          } else {
+            charName = DELETE_FINAL_WORD_PATTERN.matcher(charName).replaceAll("");
+          }
+        }
+        return NO_SCRIPTS;
+      }
+    }
+  }
+
+  /**
+   * A {@link ScriptMapping} which stores the script set ID of each code point of the string in an
+   * array. All questions about an offset are answered from properties precomputed per script set
+   * by the {@link URomanCodePointToScriptMapper.ScriptSetTable}.
+   */
+  static final class CompactScriptMapping implements ScriptMapping {
+
+    private final UnicodeFriendlyString string;
+    private final URomanCodePointToScriptMapper.ScriptSetTable table;
+    private final int[] scriptSetIds;
+    // computed on first use. Racing threads compute equal values, which are safe to publish
+    // because they are immutable
+    private ImmutableList<ScriptRun> scriptRuns;
+    private ImmutableSet<Script> scriptsPresent;
+
+    CompactScriptMapping(UnicodeFriendlyString string,
+        URomanCodePointToScriptMapper.ScriptSetTable table, int[] scriptSetIds) {
+      checkArgument(scriptSetIds.length == string.lengthInCodePoints());
+      this.string = string;
+      this.table = table;
+      this.scriptSetIds = scriptSetIds;
+    }
+
+    @Override
+    public UnicodeFriendlyString string() {
+      return string;
+    }
+
+    @Override
+    public ImmutableSet<Script> scriptsForOffset(CharOffset offset) {
+      return table.scriptSets().get(scriptSetIds[offset.asInt()]);
+    }
+
+    @Override
+    public boolean isAbugidaVowelForSomeScript(CharOffset offset, String vowel) {
+      final ImmutableSet<String> vowels = table.abugidaDefaultVowels(scriptSetIds[offset.asInt()]);
+      return !vowels.isEmpty() && vowels.contains(vowel.toLowerCase(Locale.ENGLISH));
+    }
+
+    @Override
+    public boolean startsNewScript(CharOffset offset) {
+      final int position = offset.asInt();
+      return position == 0 || !table.intersect(scriptSetIds[position], scriptSetIds[position - 1]);
+    }
+
+    @Override
+    public Optional<String> primaryDefaultVowel(CharOffset offset) {
+      return table.primaryDefaultVowel(scriptSetIds[offset.asInt()]);
+    }
+
+    @Override
+    public boolean isDevanagari(CharOffset offset) {
+      return table.containsDevanagari(scriptSetIds[offset.asInt()]);
+    }
+
+    @Override
+    public ImmutableList<ScriptRun> scriptRuns() {
+      ImmutableList<ScriptRun> ret = scriptRuns;
+      if (ret == null) {
+        final ImmutableList.Builder<ScriptRun> runs = ImmutableList.builder();
+        for (int start = 0, end; start < scriptSetIds.length; start = end) {
+          end = start + 1;
+          while (end < scriptSetIds.length && scriptSetIds[end] == scriptSetIds[start]) {
+            ++end;
+          }
+          runs.add(new ScriptRun.Builder()
+              .startPosition(start)
+              .endPosition(end)
+              .scripts(table.scriptSets().get(scriptSetIds[start]))
+              .build());
+        }
+        ret = runs.build();
+        scriptRuns = ret;
+      }
+      return ret;
+    }
+
+    @Override
+    public ImmutableSet<Script> scriptsPresent() {
+      ImmutableSet<Script> ret = scriptsPresent;
+      if (ret == null) {
+        ret = Script.scriptsPresent(scriptRuns());
+        scriptsPresent = ret;
+      }
+      return ret;
     }
   }
 
@@ -291,6 +555,32 @@ abstract class Script {
       return data().get(offset.asInt());
     }
 
+    @Value.Lazy
+    @Override
+    public ImmutableList<ScriptRun> scriptRuns() {
+      final ImmutableList.Builder<ScriptRun> ret = ImmutableList.builder();
+      final int length = string().lengthInCodePoints();
+      for (int start = 0, end; start < length; start = end) {
+        final ImmutableSet<Script> scripts = data().get(start);
+        end = start + 1;
+        while (end < length && data().get(end).equals(scripts)) {
+          ++end;
+        }
+        ret.add(new ScriptRun.Builder()
+            .startPosition(start)
+            .endPosition(end)
+            .scripts(scripts)
+            .build());
+      }
+      return ret.build();
+    }
+
+    @Value.Lazy
+    @Override
+    public ImmutableSet<Script> scriptsPresent() {
+      return Script.scriptsPresent(scriptRuns());
+    }
+
     @Override
     public final boolean startsNewScript(CharOffset offset) {
       return offset.asInt() == 0 || Sets
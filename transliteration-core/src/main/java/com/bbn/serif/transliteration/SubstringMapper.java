@@ -7,24 +7,26 @@ import com.bbn.bue.common.UnicodeFriendlyString;
 import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 import com.google.common.io.CharSource;
 
 import org.immutables.value.Value;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.bbn.bue.common.StringUtils.unicodeFriendly;
 import static com.bbn.bue.common.UnicodeFriendlyStrings.lengthInCodePointsFunction;
+import static com.bbn.serif.transliteration.URomanFileFormat.stripQuotes;
+import static com.bbn.serif.transliteration.URomanFileFormat.stripTrailingWhitespace;
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
@@ -34,27 +36,17 @@ import static com.google.common.base.Preconditions.checkArgument;
 @Value.Immutable
 @TextGroupImmutable
 @Value.Enclosing
-public abstract class SubstringMapper implements DefaultTransliterator.TransliterationRuleBlock {
+public abstract class SubstringMapper
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
   public abstract ImmutableMultimap<UnicodeFriendlyString, SubstringMapping> stringMappings();
 
   /**
-   * Indexes all our mappings by the first character of the substring to match.
-   * We could use a full trie for this, but most of our patterns are one or two characters,
-   * so this simple approach is good enough for now.
+   * Our mappings compiled into a trie over code points. This is built once, the first time the
+   * mapper is applied.
    */
-  @Value.Derived
-  ImmutableMultimap<Integer, UnicodeFriendlyString> mappingsByFirstCharacter() {
-    final ImmutableMultimap.Builder<Integer, UnicodeFriendlyString> ret = ImmutableMultimap.builder();
-
-    for (final Map.Entry<UnicodeFriendlyString, SubstringMapping> e : stringMappings().entries()) {
-      // we need this check because derived attributes will be computed before check() is called
-      if (!e.getKey().isEmpty()) {
-        // we know the keys are never empty by our check method
-        ret.put(e.getKey().utf16CodeUnits().codePointAt(0), e.getKey());
-      }
-    }
-
-    return ret.build();
+  @Value.Lazy
+  SubstringMappingAutomaton automaton() {
+    return SubstringMappingAutomaton.compile(this);
   }
 
   @Value.Derived
@@ -77,24 +69,23 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
 
   @Override
   public void applyToChart(TransliterationChart chart) {
-    final UnicodeFriendlyString ufs = chart.string();
-    // simple but slow implementation
-    for (int codeUnitOffset = 0, codepointOffset = 0; codeUnitOffset < ufs.lengthInUtf16CodeUnits(); ++codepointOffset) {
-      final int codePoint = ufs.utf16CodeUnits().codePointAt(codeUnitOffset);
-      for (final UnicodeFriendlyString possibleMatch : mappingsByFirstCharacter().get(codePoint)) {
-        if (ufs.utf16CodeUnits().startsWith(possibleMatch.utf16CodeUnits(), codeUnitOffset)) {
-          for (final SubstringMapping mapping : stringMappings().get(possibleMatch)) {
-            chart.addEdge(new ChartEdge.Builder()
-                    .startPosition(codepointOffset)
-                    .endPosition(codepointOffset + possibleMatch.lengthInCodePoints())
-                    .spanTransliteration(mapping.transliteration().utf16CodeUnits())
-                    .score(mapping.score()).build(),
-                mapping.comment().or("substring mapper (no comment)"));
-          }
-        }
-      }
-      codeUnitOffset += Character.charCount(codePoint);
-    }
+    automaton().addMatchesToChart(chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(DefaultTransliterator.EdgeSink edges, int[] codePoints,
+      int length, int position) {
+    automaton().addMatchesStartingAt(edges, codePoints, length, position);
+  }
+
+  @Override
+  public boolean isContextFree(int codePoint, ImmutableSet<Script> scripts) {
+    return !automaton().isInLongerPattern(codePoint);
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
   }
 
 
@@ -118,13 +109,49 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
 
 
     static class Builder extends ImmutableSubstringMapper.LoadSubstringMappingsResult.Builder {}
+
+    /**
+     * Combines the results of loading several mappings files separately into what loading them
+     * all at once, in the same order, would give.
+     */
+    static LoadSubstringMappingsResult concat(final Iterable<LoadSubstringMappingsResult> results) {
+      final SubstringMapper.Builder generalMapper = new SubstringMapper.Builder();
+      final SortedMap<String, SubstringMapper.Builder> languageSpecificMappers = new TreeMap<>();
+      for (final LoadSubstringMappingsResult result : results) {
+        putAll(result.generalMapper(), generalMapper);
+        for (final Map.Entry<String, SubstringMapper> e
+            : result.languageSpecificMappers().entrySet()) {
+          if (!languageSpecificMappers.containsKey(e.getKey())) {
+            languageSpecificMappers.put(e.getKey(), new SubstringMapper.Builder());
+          }
+          putAll(e.getValue(), languageSpecificMappers.get(e.getKey()));
+        }
+      }
+
+      final ImmutableMap.Builder<String, SubstringMapper> languageSpecificMappersBuilt =
+          ImmutableMap.builder();
+      for (final Map.Entry<String, SubstringMapper.Builder> e
+          : languageSpecificMappers.entrySet()) {
+        languageSpecificMappersBuilt.put(e.getKey(), e.getValue().build());
+      }
+      return new LoadSubstringMappingsResult.Builder()
+          .generalMapper(generalMapper.build())
+          .languageSpecificMappers(languageSpecificMappersBuilt.build())
+          .build();
+    }
+
+    // a pattern's mappings stay in order, and a pattern already seen in an earlier file keeps
+    // its place, just as if this file's lines had been parsed into the same builder
+    private static void putAll(final SubstringMapper mapper, final SubstringMapper.Builder to) {
+      for (final Map.Entry<UnicodeFriendlyString, SubstringMapping> e
+          : mapper.stringMappings().entries()) {
+        to.putStringMappings(e.getKey(), e.getValue());
+      }
+    }
   }
 
   // constants shared between URomanSubstringMappingsLoader and code for loading
   // Unicode data overwrite file
-  private static final Pattern STRIP_DOUBLE_QUOTES = Pattern.compile("^\"(.*)\"$");
-  private static final Pattern STRIP_SINGLE_QUOTES = Pattern.compile("^'(.*)'$");
-
   private static final String SOURCE_FIELD = "s";
   private static final String TARGET_FIELD = "t";
   // currently ignored
@@ -143,6 +170,15 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
       return true;
     }
 
+    /**
+     * Whether mappings keep the comments of the lines they were loaded from, which are only used
+     * as derivations for debugging. Defaults to true.
+     */
+    @Value.Default
+    public boolean keepComments() {
+      return true;
+    }
+
     public static class Builder
         extends ImmutableSubstringMapper.URomanSubstringMappingsLoader.Builder {
 
@@ -153,18 +189,22 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
       final SubstringMapper.Builder generalMapper = new SubstringMapper.Builder();
       final SortedMap<String, SubstringMapper.Builder> languageSpecificMappers = new TreeMap<>();
 
+      // reused for every line
+      final List<String> languageCodes = new ArrayList<>();
       for (final CharSource substringMappingsFile : substringMappingsFiles) {
         // sample line
         // ::s Ҥ ::t Ng ::comment Cyrillic capital ligature EN GHE
-        int lineNo = 0;
-        for (final String line : substringMappingsFile.readLines()) {
-          ++lineNo;
-
-          try {
-            parseLine(line, generalMapper, languageSpecificMappers);
-          } catch (Exception e) {
-            throw new BadMappingsFileException("Exception while parsing line " + lineNo + " of "
-                + "custom mappings file " + substringMappingsFile + ". Cannot parse line:" + line);
+        try (Reader in = substringMappingsFile.openStream()) {
+          final URomanFileFormat.FieldScanner scanner = new URomanFileFormat.FieldScanner(in);
+          while (scanner.nextLine()) {
+            try {
+              parseLine(scanner, keepComments(), generalMapper, languageSpecificMappers,
+                  languageCodes);
+            } catch (Exception e) {
+              throw new BadMappingsFileException("Exception while parsing line "
+                  + scanner.lineNumber() + " of custom mappings file " + substringMappingsFile
+                  + ". Cannot parse line:" + scanner.line());
+            }
           }
         }
       }
@@ -200,110 +240,121 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
         cjkBuilder.putStringMappings(unicodeFriendly(parts.get(0)),
             new SubstringMapping.Builder()
                 .transliteration(unicodeFriendly(parts.get(1))).score(1.0)
-                .comment("CJK").build());
+                .comment(keepComments() ? CJK_COMMENT : Optional.<String>absent()).build());
       }
       return cjkBuilder.build();
     }
 
 
+    private static final Optional<String> CJK_COMMENT = Optional.of("CJK");
     private static final double PER_CHARACTER_CUSTOM_MAPPING_SCORE = 1.1;
     private static final double LANGAUGE_SPECIFIC_BOOST = 1.1;
 
     // sample line
     // ::s Ҥ ::t Ng ::comment Cyrillic capital ligature EN GHE
-    private static void parseLine(final String line, final SubstringMapper.Builder generalMapper,
-        final SortedMap<String, SubstringMapper.Builder> languageSpecificMappers)
-        throws BadMappingsFileException {
-      if (line.isEmpty() || line.startsWith("#")) {
+    private static void parseLine(final URomanFileFormat.FieldScanner scanner,
+        final boolean keepComments, final SubstringMapper.Builder generalMapper,
+        final SortedMap<String, SubstringMapper.Builder> languageSpecificMappers,
+        final List<String> languageCodes) throws BadMappingsFileException {
+      if (scanner.isCommentLine()) {
         return;
       }
 
-      final ImmutableMultimap<String, String> parts =
-          URomanFileFormat.parseColonDelimitedLine(line);
-      final String source =
-          Iterables.getOnlyElement(parts.get(SOURCE_FIELD)).replaceAll("\\s*$", "");
-
-      final Optional<String> target = parseTarget(parts);
+      String source = null;
+      String numeric = null;
+      String latinPlus = null;
+      String target = null;
+      String joinedComments = null;
+      // fields given more than once. This is only an error for the ones we use.
+      int repeatedFields = 0;
+      languageCodes.clear();
+      while (scanner.nextField()) {
+        if (scanner.keyIs(SOURCE_FIELD)) {
+          repeatedFields |= source != null ? SOURCE : 0;
+          source = stripTrailingWhitespace(scanner.value());
+        } else if (scanner.keyIs(NUMERIC_FIELD)) {
+          repeatedFields |= numeric != null ? NUMERIC : 0;
+          numeric = scanner.value();
+        } else if (scanner.keyIs(LATIN_PLUS_FIELD)) {
+          repeatedFields |= latinPlus != null ? LATIN_PLUS : 0;
+          latinPlus = scanner.value();
+        } else if (scanner.keyIs(TARGET_FIELD)) {
+          repeatedFields |= target != null ? TARGET : 0;
+          target = scanner.value();
+        } else if (scanner.keyIs(COMMENT_FIELD)) {
+          if (keepComments) {
+            joinedComments = joinComments(joinedComments, scanner.value());
+          }
+        } else if (scanner.keyIs(LANGUAGE_CODE_FIELD)) {
+          languageCodes.add(scanner.value().trim());
+        }
+      }
+      checkArgument(source != null && (repeatedFields & SOURCE) == 0,
+          "Need exactly one source");
 
-      if (!target.isPresent()) {
+      final String chosenTarget;
+      if (numeric != null) {
+        // this is a temporary hack - until we have proper handling of numbers we do a direct
+        // string translation to the provided numeric value, which will sometimes be wrong
+        // see issue #13
+        checkArgument((repeatedFields & NUMERIC) == 0, "Need at most one numeric value");
+        chosenTarget = numeric;
+      } else if (latinPlus != null) {
+        // the basic mappings in the standard uroman data files (e.g. customMappings.txt,
+        // arabicMappings.txt) use only lower ASCII.  It is frequently more readable to use
+        // "extended ASCII" characters with diacritics. These are provided as alternatives
+        // marked as "latinplus"
+        checkArgument((repeatedFields & LATIN_PLUS) == 0, "Need at most one latinplus target");
+        chosenTarget = latinPlus;
+      } else if (target != null) {
+        checkArgument((repeatedFields & TARGET) == 0, "Need at most one target");
+        chosenTarget = target;
+      } else {
         // there are some entries with no target which only specify numeric mappings. We
         // currently skip these
         return;
       }
+      final UnicodeFriendlyString transliteration =
+          unicodeFriendly(stripQuotes(stripTrailingWhitespace(chosenTarget)));
+      final Optional<String> comment = Optional.fromNullable(joinedComments);
 
-      final Collection<String> comments = parts.get(COMMENT_FIELD);
-      final Optional<String> comment;
-      if (comments.isEmpty()) {
-        comment = Optional.absent();
-      } else {
-        comment = Optional.of(StringUtils.SemicolonJoiner.join(comments));
-      }
-
-      final Collection<String> languageCodes = parts.get(LANGUAGE_CODE_FIELD);
-
+      final UnicodeFriendlyString pattern = unicodeFriendly(source);
+      final int patternLength = source.codePointCount(0, source.length());
       // this is a temporary hack to encourage longer matches - see issue #12
-      final double score =
-          Math.pow(1.1, unicodeFriendly(source).lengthInCodePoints()) *
-              PER_CHARACTER_CUSTOM_MAPPING_SCORE * StringUtils.unicodeFriendly(source)
-              .lengthInCodePoints();
+      final double score = Math.pow(1.1, patternLength) * PER_CHARACTER_CUSTOM_MAPPING_SCORE
+          * patternLength;
 
       if (!languageCodes.isEmpty()) {
         for (final String languageCode : languageCodes) {
-          final String trimmedLanguageCode = languageCode.trim();
-          final SubstringMapper.Builder langSpecificMapper;
-          if (!languageSpecificMappers.containsKey(trimmedLanguageCode)) {
+          SubstringMapper.Builder langSpecificMapper = languageSpecificMappers.get(languageCode);
+          if (langSpecificMapper == null) {
             languageSpecificMappers
-                .put(trimmedLanguageCode, langSpecificMapper = new SubstringMapper.Builder());
-          } else {
-            langSpecificMapper = languageSpecificMappers.get(trimmedLanguageCode);
+                .put(languageCode, langSpecificMapper = new SubstringMapper.Builder());
           }
-          langSpecificMapper.putStringMappings(unicodeFriendly(source),
+          langSpecificMapper.putStringMappings(pattern,
               new SubstringMapping.Builder()
-                  .transliteration(unicodeFriendly(target.get())).score(
-                  LANGAUGE_SPECIFIC_BOOST * score)
-                  .comment(comment + " [lang: " + trimmedLanguageCode + "]").build());
+                  .transliteration(transliteration).score(LANGAUGE_SPECIFIC_BOOST * score)
+                  .comment(keepComments ? Optional.of(comment + " [lang: " + languageCode + "]")
+                      : Optional.<String>absent())
+                  .build());
         }
       } else {
-        generalMapper.putStringMappings(unicodeFriendly(source),
+        generalMapper.putStringMappings(pattern,
             new SubstringMapping.Builder()
-                .transliteration(unicodeFriendly(target.get())).score(score).comment(comment)
+                .transliteration(transliteration).score(score).comment(comment)
                 .build());
       }
     }
 
-    private static Optional<String> parseTarget(final ImmutableMultimap<String, String> parts) {
-
-      String target;
-      if (parts.containsKey(NUMERIC_FIELD)) {
-        // this is a temporary hack - until we have proper handling of numbers we do a direct
-        // string translation to the provided numeric value, which will sometimes be wrong
-        // see issue #13
-        target = Iterables.getOnlyElement(parts.get(NUMERIC_FIELD));
-      } else if (parts.containsKey(LATIN_PLUS_FIELD)) {
-        // the basic mappings in the standard uroman data files (e.g. customMappings.txt,
-        // arabicMappings.txt) use only lower ASCII.  It is frequently more readable to use
-        // "extended ASCII" characters with diacritics. These are provided as alternatives
-        // marked as "latinplus"
-        target = Iterables.getOnlyElement(parts.get(LATIN_PLUS_FIELD));
-      } else if (parts.containsKey(TARGET_FIELD)) {
-        target = Iterables.getOnlyElement(parts.get(TARGET_FIELD));
-      } else {
-        return Optional.absent();
-      }
-
-      target = target.replaceAll("\\s*$", "");
-
-      final Matcher stripDoubleQuotesMatcher = STRIP_DOUBLE_QUOTES.matcher(target);
-      if (stripDoubleQuotesMatcher.matches()) {
-        target = stripDoubleQuotesMatcher.group(1);
-      }
-      final Matcher stripSingleQuotesMatcher = STRIP_SINGLE_QUOTES.matcher(target);
-      if (stripSingleQuotesMatcher.matches()) {
-        target = stripSingleQuotesMatcher.group(1);
-      }
+    private static final int SOURCE = 1;
+    private static final int NUMERIC = 1 << 1;
+    private static final int LATIN_PLUS = 1 << 2;
+    private static final int TARGET = 1 << 3;
+  }
 
-      return Optional.of(target);
-    }
+  private static String joinComments(final String joinedComments, final String comment) {
+    return joinedComments == null ? comment
+        : StringUtils.SemicolonJoiner.join(joinedComments, comment);
   }
 
   private static final String UNICODE_DATA_OVERWRITE_SOURCE_FIELD = "u";
@@ -313,17 +364,27 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
 
   public static SubstringMapper loadUromanUnicodeDataOverwriteMappings(final CharSource source)
       throws IOException {
-    final SubstringMapper.Builder mapper = new SubstringMapper.Builder();
+    return loadUromanUnicodeDataOverwriteMappings(source, true);
+  }
 
-    int lineNo = 0;
-    for (final String line : source.readLines()) {
-      ++lineNo;
+  /**
+   * Loads a Unicode data overwrite file. If {@code keepComments} is false, the mappings get no
+   * comments (see {@link URomanSubstringMappingsLoader#keepComments()}).
+   */
+  public static SubstringMapper loadUromanUnicodeDataOverwriteMappings(final CharSource source,
+      final boolean keepComments) throws IOException {
+    final SubstringMapper.Builder mapper = new SubstringMapper.Builder();
 
-      try {
-        parseUnicodeDataOverwriteLine(line, mapper);
-      } catch (Exception e) {
-        throw new BadMappingsFileException("Exception while parsing line " + lineNo + " of "
-            + "Unicode data overwrite file " + source + ". Cannot parse line:" + line);
+    try (Reader in = source.openStream()) {
+      final URomanFileFormat.FieldScanner scanner = new URomanFileFormat.FieldScanner(in);
+      while (scanner.nextLine()) {
+        try {
+          parseUnicodeDataOverwriteLine(scanner, keepComments, mapper);
+        } catch (Exception e) {
+          throw new BadMappingsFileException("Exception while parsing line "
+              + scanner.lineNumber() + " of Unicode data overwrite file " + source
+              + ". Cannot parse line:" + scanner.line());
+        }
       }
     }
 
@@ -332,52 +393,77 @@ public abstract class SubstringMapper implements DefaultTransliterator.Translite
 
   public static void parseUnicodeDataOverwriteLine(String line, Builder mapper)
       throws BadMappingsFileException {
-    if (line.isEmpty() || line.startsWith("#")) {
+    if (line.isEmpty()) {
       return;
     }
+    final URomanFileFormat.FieldScanner scanner =
+        new URomanFileFormat.FieldScanner(new StringReader(line));
+    try {
+      scanner.nextLine();
+    } catch (IOException e) {
+      // impossible for a StringReader
+      throw new RuntimeException(e);
+    }
+    parseUnicodeDataOverwriteLine(scanner, true, mapper);
+  }
 
-    final ImmutableMultimap<String, String> parts =
-        URomanFileFormat.parseColonDelimitedLine(line);
-    final String source = new String(new int[]{Integer.parseInt(
-        Iterables.getOnlyElement(parts.get(UNICODE_DATA_OVERWRITE_SOURCE_FIELD))
-            .replaceAll("\\s*$", ""), 16)}, 0, 1);
-
-    if (!parts.containsKey(UNICODE_DATA_OVERWRITE_TARGET_FIELD)) {
+  private static void parseUnicodeDataOverwriteLine(final URomanFileFormat.FieldScanner scanner,
+      final boolean keepComments, final Builder mapper) throws BadMappingsFileException {
+    if (scanner.isCommentLine()) {
       return;
     }
 
-    String target = Iterables.getOnlyElement(parts.get(UNICODE_DATA_OVERWRITE_TARGET_FIELD))
-        .replaceAll("\\s*$", "");
-
-    final Matcher stripDoubleQuotesMatcher = STRIP_DOUBLE_QUOTES.matcher(target);
-    if (stripDoubleQuotesMatcher.matches()) {
-      target = stripDoubleQuotesMatcher.group(1);
+    String codePoint = null;
+    String numeric = null;
+    String target = null;
+    String joinedComments = null;
+    boolean repeatedCodePoint = false;
+    boolean repeatedNumeric = false;
+    boolean repeatedTarget = false;
+    while (scanner.nextField()) {
+      if (scanner.keyIs(UNICODE_DATA_OVERWRITE_SOURCE_FIELD)) {
+        repeatedCodePoint |= codePoint != null;
+        codePoint = stripTrailingWhitespace(scanner.value());
+      } else if (scanner.keyIs(UNICODE_DATA_OVERWRITE_TARGET_FIELD)) {
+        repeatedTarget |= target != null;
+        target = stripTrailingWhitespace(scanner.value());
+      } else if (scanner.keyIs(NUMERIC_FIELD)) {
+        repeatedNumeric |= numeric != null;
+        numeric = scanner.value();
+      } else if (scanner.keyIs(COMMENT_FIELD) && keepComments) {
+        joinedComments = joinComments(joinedComments, scanner.value());
+      }
     }
-    final Matcher stripSingleQuotesMatcher = STRIP_SINGLE_QUOTES.matcher(target);
-    if (stripSingleQuotesMatcher.matches()) {
-      target = stripSingleQuotesMatcher.group(1);
+    checkArgument(codePoint != null && !repeatedCodePoint, "Need exactly one code point");
+    final String source = new String(new int[]{Integer.parseInt(codePoint, 16)}, 0, 1);
+
+    if (target == null) {
+      return;
     }
+    checkArgument(!repeatedTarget, "Need at most one target");
+    target = stripQuotes(target);
 
-    if (parts.containsKey(NUMERIC_FIELD) && target.isEmpty()) {
+    if (numeric != null && target.isEmpty()) {
       // this is a temporary hack - until we have proper handling of numbers we do a direct
       // string translation to the provided numeric value, which will sometimes be wrong
       // see issue #13
-      target = Iterables.getOnlyElement(parts.get(NUMERIC_FIELD));
+      checkArgument(!repeatedNumeric, "Need at most one numeric value");
+      target = numeric;
     }
 
-    final Collection<String> comments = parts.get(COMMENT_FIELD);
-    final String comment;
-    if (comments.isEmpty()) {
-      comment = "[Unicode overwrite]";
+    final Optional<String> comment;
+    if (!keepComments) {
+      comment = Optional.absent();
+    } else if (joinedComments == null) {
+      comment = Optional.of("[Unicode overwrite]");
     } else {
-      comment = StringUtils.SemicolonJoiner.join(comments) + "[Unicode overwrite]";
+      comment = Optional.of(joinedComments + "[Unicode overwrite]");
     }
 
+    final int patternLength = source.codePointCount(0, source.length());
     final double score =
         // this is a temporary hack to encourage longer matches - see issue #12
-        Math.pow(1.1, unicodeFriendly(source).lengthInCodePoints()) *
-            PER_CHARACTER_OVERWRITE_MAPPING_SCORE * StringUtils.unicodeFriendly(source)
-            .lengthInCodePoints();
+        Math.pow(1.1, patternLength) * PER_CHARACTER_OVERWRITE_MAPPING_SCORE * patternLength;
 
     mapper.putStringMappings(unicodeFriendly(source),
         new SubstringMapping.Builder()
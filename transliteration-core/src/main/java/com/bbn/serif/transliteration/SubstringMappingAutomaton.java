@@ -0,0 +1,176 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The compiled form of one or more {@link SubstringMapper}s: their patterns are held in a single
+ * {@link CodePointTrie} and the mappings for each pattern in parallel arrays, so a single walk from
+ * each position of the input finds every matching pattern of every mapper without boxing or
+ * repeated prefix comparisons.
+ *
+ * When several mappers are compiled together, the mappings for a pattern keep the order of the
+ * mappers they came from, and each keeps its own score and derivation. Applying the automaton
+ * therefore adds the same edges as applying each mapper in turn.
+ *
+ * Once compiled, an automaton doesn't refer to the mappers, so it can outlive them. Equal
+ * transliterations and comments are stored once however many mappings share them, and comments
+ * are only stored at all if derivations are kept.
+ *
+ * This object is immutable and thread-safe.
+ */
+final class SubstringMappingAutomaton {
+
+  private static final String NO_COMMENT_DERIVATION = "substring mapper (no comment)";
+  private static final String DERIVATIONS_NOT_KEPT = "substring mapper (derivations not kept)";
+
+  private final CodePointTrie trie;
+  // the mappings for pattern p are at indices mappingStart[p] (inclusive) to
+  // mappingStart[p+1] (exclusive) of the arrays below
+  private final int[] mappingStart;
+  private final String[] transliterations;
+  private final double[] scores;
+  // null if derivations are not kept
+  private final String[] derivations;
+  // sorted, without duplicates
+  private final int[] codePointsInLongerPatterns;
+
+  private SubstringMappingAutomaton(CodePointTrie trie, int[] mappingStart,
+      String[] transliterations, double[] scores, String[] derivations,
+      int[] codePointsInLongerPatterns) {
+    this.trie = trie;
+    this.mappingStart = mappingStart;
+    this.transliterations = transliterations;
+    this.scores = scores;
+    this.derivations = derivations;
+    this.codePointsInLongerPatterns = codePointsInLongerPatterns;
+  }
+
+  static SubstringMappingAutomaton compile(SubstringMapper mapper) {
+    return compile(ImmutableList.of(mapper));
+  }
+
+  static SubstringMappingAutomaton compile(Iterable<SubstringMapper> mappers) {
+    return compile(mappers, true);
+  }
+
+  /**
+   * Compiles {@code mappers}. If {@code keepDerivations} is false, the mappings' comments are not
+   * stored and every edge's derivation just says it came from a substring mapper.
+   */
+  static SubstringMappingAutomaton compile(Iterable<SubstringMapper> mappers,
+      boolean keepDerivations) {
+    final CodePointTrie.Builder trieBuilder = new CodePointTrie.Builder();
+    final List<List<SubstringMapper.SubstringMapping>> mappingsByPattern = new ArrayList<>();
+    final Set<Integer> codePointsInLongerPatterns = new TreeSet<>();
+    int numMappings = 0;
+    for (final SubstringMapper mapper : mappers) {
+      for (final UnicodeFriendlyString pattern : mapper.stringMappings().keySet()) {
+        if (pattern.lengthInCodePoints() > 1) {
+          final String codeUnits = pattern.utf16CodeUnits();
+          for (int i = 0; i < codeUnits.length(); ) {
+            final int codePoint = codeUnits.codePointAt(i);
+            codePointsInLongerPatterns.add(codePoint);
+            i += Character.charCount(codePoint);
+          }
+        }
+        final int patternIdx = trieBuilder.add(pattern);
+        if (patternIdx == mappingsByPattern.size()) {
+          mappingsByPattern.add(new ArrayList<SubstringMapper.SubstringMapping>());
+        }
+        final ImmutableCollection<SubstringMapper.SubstringMapping> mappings =
+            mapper.stringMappings().get(pattern);
+        mappingsByPattern.get(patternIdx).addAll(mappings);
+        numMappings += mappings.size();
+      }
+    }
+
+    final int[] mappingStart = new int[mappingsByPattern.size() + 1];
+    final String[] transliterations = new String[numMappings];
+    final double[] scores = new double[numMappings];
+    final String[] derivations = keepDerivations ? new String[numMappings] : null;
+    final Map<String, String> stringPool = new HashMap<>();
+    int mappingIdx = 0;
+    for (int pattern = 0; pattern < mappingsByPattern.size(); ++pattern) {
+      mappingStart[pattern] = mappingIdx;
+      for (final SubstringMapper.SubstringMapping mapping : mappingsByPattern.get(pattern)) {
+        transliterations[mappingIdx] =
+            pooled(mapping.transliteration().utf16CodeUnits(), stringPool);
+        scores[mappingIdx] = mapping.score();
+        if (derivations != null) {
+          derivations[mappingIdx] = pooled(mapping.comment().or(NO_COMMENT_DERIVATION), stringPool);
+        }
+        ++mappingIdx;
+      }
+    }
+    mappingStart[mappingsByPattern.size()] = mappingIdx;
+
+    return new SubstringMappingAutomaton(trieBuilder.build(), mappingStart, transliterations,
+        scores, derivations, Ints.toArray(codePointsInLongerPatterns));
+  }
+
+  private static String pooled(final String s, final Map<String, String> stringPool) {
+    final String pooled = stringPool.get(s);
+    if (pooled != null) {
+      return pooled;
+    }
+    stringPool.put(s, s);
+    return s;
+  }
+
+  /**
+   * Whether {@code codePoint} is part of any pattern longer than one code point. If not, the only
+   * matches covering it are of single code point patterns.
+   */
+  boolean isInLongerPattern(final int codePoint) {
+    return Arrays.binarySearch(codePointsInLongerPatterns, codePoint) >= 0;
+  }
+
+  /**
+   * Adds an edge to {@code chart} for every mapping of every pattern which occurs in the chart's
+   * string.  At each start position, edges for shorter matches are added before longer ones.
+   */
+  void addMatchesToChart(final TransliterationChart chart) {
+    final int[] codePoints = chart.codePoints();
+    final int length = chart.string().lengthInCodePoints();
+    for (int position = 0; position < length; ++position) {
+      addMatchesStartingAt(chart, codePoints, length, position);
+    }
+  }
+
+  /**
+   * Adds an edge to {@code edges} for every mapping of every pattern which occurs at
+   * {@code position} of the first {@code length} code points of {@code codePoints}, shorter
+   * matches first.
+   */
+  void addMatchesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    int node = trie.child(CodePointTrie.ROOT, codePoints[position]);
+    int matchEnd = position + 1;
+    while (node != CodePointTrie.NO_NODE) {
+      final int pattern = trie.patternAt(node);
+      if (pattern != CodePointTrie.NO_PATTERN) {
+        for (int i = mappingStart[pattern]; i < mappingStart[pattern + 1]; ++i) {
+          edges.addEdge(position, matchEnd, transliterations[i], scores[i],
+              derivations != null ? derivations[i] : DERIVATIONS_NOT_KEPT);
+        }
+      }
+      if (matchEnd >= length) {
+        break;
+      }
+      node = trie.child(node, codePoints[matchEnd]);
+      ++matchEnd;
+    }
+  }
+}
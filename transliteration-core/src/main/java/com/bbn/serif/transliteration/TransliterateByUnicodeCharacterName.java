@@ -1,14 +1,9 @@
 package com.bbn.serif.transliteration;
 
 import com.bbn.bue.common.StringUtils;
-import com.bbn.bue.common.UnicodeFriendlyString;
-import com.bbn.bue.common.strings.offsets.CharOffset;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Range;
@@ -18,50 +13,69 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Transliterate source characters by looking up their Unicode names and
  * applying various transformations.
+ *
+ * The transformations are not applied at runtime. Instead their results for every code point are
+ * precomputed by {@link BuildUnicodeNameTransliterationTable} into a
+ * {@link UnicodeNameTransliterationTable}, so lookups need no regular expressions and the output
+ * does not depend on the Unicode version of the running JDK.
  */
-// user-visible state is immutable. "cache" is used for performance and is thread-safe.
-@SuppressWarnings("ImmutableEnumChecker")
-enum TransliterateByUnicodeCharacterName implements DefaultTransliterator.TransliterationRuleBlock {
+enum TransliterateByUnicodeCharacterName
+    implements DefaultTransliterator.IndependentRuleBlock, DefaultTransliterator.LocalRuleBlock {
   INSTANCE;
 
   private static final Logger log =
       LoggerFactory.getLogger(TransliterateByUnicodeCharacterName.class);
 
-  final LoadingCache<Integer, Optional<String>> cache = CacheBuilder.newBuilder()
-      .build(new CacheLoader<Integer, Optional<String>>() {
-        @Override
-        public Optional<String> load(final Integer codepoint) throws Exception {
-          return codepointToStringInternal(codepoint);
-        }
-      });
+  // loaded on first use so that the table generator can use the rules below without it
+  private static final class TableHolder {
+
+    static final UnicodeNameTransliterationTable TABLE =
+        UnicodeNameTransliterationTable.loadFromResource();
+  }
 
   @Override
   public void applyToChart(final TransliterationChart chart) {
-    chart.string().processCodePoints(new UnicodeFriendlyString.NoResultCodePointProcessor() {
-      @Override
-      public void processCodepoint(final UnicodeFriendlyString s, final CharOffset codePointOffset,
-          final int codePoint) {
-        if (Character.isLetter(codePoint) || Character.isDigit(codePoint)
-            || Character.isIdeographic(codePoint) || isPunctuation(codePoint) || isOtherHandled(
-            codePoint)) {
-          final Optional<String> codepointTransliteration = codepointToString(codePoint);
-
-          if (codepointTransliteration.isPresent()) {
-            chart.addEdge(new ChartEdge.Builder().startPosition(codePointOffset.asInt())
-                .endPosition(codePointOffset.asInt() + 1)
-                .spanTransliteration(codepointTransliteration.get())
-                .score(CHARACTER_NAME_SCORE).build(), DERIVED_BY_CHARACTER_NAME);
-          }
-        }
-      }
-    });
+    DefaultTransliterator.applyAtEachPosition(this, chart);
+  }
+
+  @Override
+  public void addEdgesStartingAt(final DefaultTransliterator.EdgeSink edges,
+      final int[] codePoints, final int length, final int position) {
+    final String codepointTransliteration = TableHolder.TABLE.transliterationOf(
+        codePoints[position]);
+    if (codepointTransliteration != null) {
+      edges.addEdge(position, position + 1, codepointTransliteration, CHARACTER_NAME_SCORE,
+          DERIVED_BY_CHARACTER_NAME);
+    }
+  }
+
+  @Override
+  public boolean isContextFree(final int codePoint, final ImmutableSet<Script> scripts) {
+    return true;
+  }
+
+  @Override
+  public int leftReach() {
+    return 0;
+  }
+
+  /**
+   * Whether this rule block considers {@code codePoint} at all. Only these code points are
+   * included in the precomputed table. Hangul syllables are left to {@link HangulSyllables}.
+   */
+  static boolean isHandled(int codePoint) {
+    if (HangulSyllables.isHangulSyllable(codePoint)) {
+      return false;
+    }
+    return Character.isLetter(codePoint) || Character.isDigit(codePoint)
+        || Character.isIdeographic(codePoint) || isPunctuation(codePoint)
+        || isOtherHandled(codePoint);
   }
 
   static boolean isPunctuation(int codepoint) {
@@ -79,7 +93,7 @@ enum TransliterateByUnicodeCharacterName implements DefaultTransliterator.Transl
     }
   }
 
-  private boolean isOtherHandled(int codePoint) {
+  private static boolean isOtherHandled(int codePoint) {
     if (isPunctuation(codePoint)) {
       return true;
     }
@@ -97,13 +111,11 @@ enum TransliterateByUnicodeCharacterName implements DefaultTransliterator.Transl
   private static final double CHARACTER_NAME_SCORE = 1.0;
   private static final String DERIVED_BY_CHARACTER_NAME = "by character name";
 
-
+  /**
+   * The transliteration this rule block uses for {@code codepoint}, if any.
+   */
   public Optional<String> codepointToString(int codepoint) {
-    try {
-      return cache.get(codepoint);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
-    }
+    return Optional.fromNullable(TableHolder.TABLE.transliterationOf(codepoint));
   }
 
   private static final Joiner OR_JOINER = Joiner.on("|");
@@ -213,7 +225,11 @@ enum TransliterateByUnicodeCharacterName implements DefaultTransliterator.Transl
 
   private static final int SUSPICIOUS_LENGTH = 6;
 
-  private static Optional<String> codepointToStringInternal(int codepoint) {
+  /**
+   * Applies the character name rules to {@code codepoint}.  This is slow and should only be used
+   * to build the precomputed table.
+   */
+  static Optional<String> computeTransliteration(int codepoint) {
     if (Character.isDigit(codepoint)) {
       return Optional.of(Integer.toString(Character.digit(codepoint, 10)));
     }
@@ -297,7 +313,7 @@ enum TransliterateByUnicodeCharacterName implements DefaultTransliterator.Transl
     }
 
     if (charName.length() >= SUSPICIOUS_LENGTH) {
-      log.warn("Codepoint with original name {} transliterates to suspiciously long string {},"
+      log.debug("Codepoint with original name {} transliterates to suspiciously long string {},"
           + " refusing to add transliteration", originalCharName, charName);
       return Optional.absent();
     }
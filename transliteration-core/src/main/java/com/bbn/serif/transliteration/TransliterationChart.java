@@ -2,19 +2,11 @@ package com.bbn.serif.transliteration;
 
 import com.bbn.bue.common.StringUtils;
 import com.bbn.bue.common.UnicodeFriendlyString;
-import com.bbn.bue.common.scoring.Scored;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Ordering;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -26,28 +18,93 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * "Positions" in the chart are between character, so the first source character is between
  * positions zero and one.  Therefore an edge always corresponds to one or more source characters.
  *
+ * Internally edges are not stored as {@link ChartEdge} objects but as parallel primitive arrays
+ * indexed by edge ID (the order in which edges were added), with output strings interned in an
+ * {@link OutputStringTable}. The edges starting and ending at each position are threaded through
+ * linked lists held in further arrays. {@link ChartEdge}s are only created when a caller asks for
+ * them.
+ *
+ * A chart may be {@link #reset(UnicodeFriendlyString, Script.ScriptMapping)} to transliterate
+ * another string, reusing all its storage.
+ *
+ * Several rules often propose the same transliteration of the same span. Only the best of these
+ * is kept: an edge which is no better than one already in the chart with the same span and
+ * transliteration is not added at all, and one which is better supersedes the old edge. The
+ * number of edges kept for each span may additionally be capped, in which case each new edge
+ * either supersedes the worst edge over its span or is not added. Superseded edges stay in the
+ * chart but are skipped by every {@link EdgeCursor} which can see the edge superseding them and
+ * by decoding, so rules never build on an edge known to be beaten.
+ *
  * This object is mutable.
  */
-final class TransliterationChart {
-
-  private final UnicodeFriendlyString string;
-  private final Script.ScriptMapping scriptMapping;
+final class TransliterationChart implements DefaultTransliterator.EdgeSink {
 
+  private static final int NO_EDGE = -1;
+  private static final int INITIAL_EDGE_CAPACITY = 64;
   /**
-   * how did this edge come to be? never iterated, for debugging purposes only
+   * {@link #supersededBy} value for edges which are not superseded.  This is greater than any
+   * edge ID, so a cursor sees an edge as superseded exactly when it can see the superseding edge.
    */
-  private final Map<ChartEdge, String> derivations = new HashMap<>();
-  private final List<ChartEdge> allEdges = new ArrayList<>();
-  // we index the edges in various ways for convenience when writing transliteration rules
-  private final ListMultimap<Integer, ChartEdge> edgesStartingAt = ArrayListMultimap.create();
-  private final ListMultimap<Integer, ChartEdge> edgesEndingAt = ArrayListMultimap.create();
-  private final ListMultimap<Integer, ChartEdge> edgesIncluding = ArrayListMultimap.create();
+  private static final int NOT_SUPERSEDED = Integer.MAX_VALUE;
 
-
-  private TransliterationChart(UnicodeFriendlyString string, Script.ScriptMapping scriptMapping) {
-    this.string = checkNotNull(string);
-    this.scriptMapping = checkNotNull(scriptMapping);
-    checkArgument(scriptMapping.string().equals(string));
+  /**
+   * The maximum number of edges kept over each span, or {@link Integer#MAX_VALUE} for no limit.
+   */
+  private final int maxEdgesPerSpan;
+
+  private UnicodeFriendlyString string;
+  private Script.ScriptMapping scriptMapping;
+  // the number of positions in the chart, which is one more than the length of the string
+  private int numPositions;
+  // the string's code points, decoded on first request. May be longer than the string.
+  private int[] codePoints = new int[0];
+  private boolean codePointsDecoded;
+
+  private int numEdges = 0;
+  private int[] edgeStarts = new int[INITIAL_EDGE_CAPACITY];
+  private int[] edgeEnds = new int[INITIAL_EDGE_CAPACITY];
+  private int[] edgeOutputs = new int[INITIAL_EDGE_CAPACITY];
+  private double[] edgeScores = new double[INITIAL_EDGE_CAPACITY];
+  // the ID of the edge which replaced each edge, or NOT_SUPERSEDED
+  private int[] supersededBy = new int[INITIAL_EDGE_CAPACITY];
+  /**
+   * how did each edge come to be? for debugging purposes only. {@code null} if we are not
+   * tracking derivations.
+   */
+  private final EdgeDerivations derivations;
+  private final OutputStringTable outputs = new OutputStringTable();
+  // open-addressing hash table from (start, end, output) to the ID of the best edge with them,
+  // which is also the most recently added one
+  private int[] edgesBySpanAndOutput = newSlots(2 * INITIAL_EDGE_CAPACITY);
+  private int numSpansAndOutputs = 0;
+
+  // we index the edges in various ways for convenience when writing transliteration rules.
+  // The edges starting at position p are firstStartingAt[p], nextStartingAtSamePosition[that],
+  // etc. in the order they were added, and likewise for the edges ending at a position.
+  private int[] firstStartingAt = new int[0];
+  private int[] lastStartingAt = new int[0];
+  private int[] firstEndingAt = new int[0];
+  private int[] lastEndingAt = new int[0];
+  private int[] nextStartingAtSamePosition = new int[INITIAL_EDGE_CAPACITY];
+  private int[] nextEndingAtSamePosition = new int[INITIAL_EDGE_CAPACITY];
+  // bounds how far back edgesIncluding needs to look
+  private int maxEdgeLength = 0;
+  // scratch space for groupEdgesEndingAt: the group of each edge, by ID
+  private int[] edgeGroups = new int[0];
+
+  // scratch space for bestDecoding, allocated on first use and reused by later calls
+  private double[] bestScoreToPosition = new double[0];
+  // backpointers - what is the most recent edge on our best path up to the given position?
+  private int[] bestStepToPosition = new int[0];
+  private int[] bestPath = new int[0];
+  private final StringBuilder decoding = new StringBuilder();
+
+  private TransliterationChart(UnicodeFriendlyString string, Script.ScriptMapping scriptMapping,
+      boolean trackDerivations, int maxEdgesPerSpan) {
+    checkArgument(maxEdgesPerSpan > 0);
+    this.derivations = trackDerivations ? new EdgeDerivations() : null;
+    this.maxEdgesPerSpan = maxEdgesPerSpan;
+    reset(string, scriptMapping);
   }
 
   /**
@@ -55,7 +112,69 @@ final class TransliterationChart {
    */
   public static TransliterationChart createForLength(UnicodeFriendlyString s,
       Script.ScriptMapping scriptMapping) {
-    return new TransliterationChart(s, scriptMapping);
+    return createForLength(s, scriptMapping, true);
+  }
+
+  /**
+   * Creates a chart for transliterating {@code s}.  If {@code trackDerivations} is false, the
+   * reasons and parents given when adding edges are ignored and
+   * {@link #derivationOf(ChartEdge)} is always absent. This saves time and memory when nobody
+   * will look at derivations.
+   */
+  public static TransliterationChart createForLength(UnicodeFriendlyString s,
+      Script.ScriptMapping scriptMapping, boolean trackDerivations) {
+    return new TransliterationChart(s, scriptMapping, trackDerivations, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #createForLength(UnicodeFriendlyString, Script.ScriptMapping, boolean)}, but the
+   * chart keeps at most {@code maxEdgesPerSpan} edges over any one span, dropping the lowest
+   * scoring ones. Since the dropped edges might have been extended into better ones, this may
+   * change the best decoding.
+   */
+  static TransliterationChart createForLength(UnicodeFriendlyString s,
+      Script.ScriptMapping scriptMapping, boolean trackDerivations, int maxEdgesPerSpan) {
+    return new TransliterationChart(s, scriptMapping, trackDerivations, maxEdgesPerSpan);
+  }
+
+  /**
+   * Empties this chart and prepares it for transliterating {@code s}. The chart's storage is
+   * kept, so a chart reused for many short strings stops allocating once it has grown to fit
+   * them.
+   */
+  void reset(UnicodeFriendlyString s, Script.ScriptMapping scriptMapping) {
+    this.string = checkNotNull(s);
+    this.scriptMapping = checkNotNull(scriptMapping);
+    checkArgument(scriptMapping.string().equals(s));
+
+    numPositions = s.lengthInCodePoints() + 1;
+    if (firstStartingAt.length < numPositions) {
+      firstStartingAt = new int[numPositions];
+      lastStartingAt = new int[numPositions];
+      firstEndingAt = new int[numPositions];
+      lastEndingAt = new int[numPositions];
+    }
+    Arrays.fill(firstStartingAt, 0, numPositions, NO_EDGE);
+    Arrays.fill(lastStartingAt, 0, numPositions, NO_EDGE);
+    Arrays.fill(firstEndingAt, 0, numPositions, NO_EDGE);
+    Arrays.fill(lastEndingAt, 0, numPositions, NO_EDGE);
+
+    codePointsDecoded = false;
+    numEdges = 0;
+    maxEdgeLength = 0;
+    outputs.clear();
+    // clearing the table costs as much as it is large, so rather than clearing a table grown for
+    // a much longer string on every later call, we go back to a small one
+    if (edgesBySpanAndOutput.length
+        > 8 * Math.max(numSpansAndOutputs, INITIAL_EDGE_CAPACITY)) {
+      edgesBySpanAndOutput = newSlots(2 * INITIAL_EDGE_CAPACITY);
+    } else {
+      Arrays.fill(edgesBySpanAndOutput, NO_EDGE);
+    }
+    numSpansAndOutputs = 0;
+    if (derivations != null) {
+      derivations.clear();
+    }
   }
 
   public UnicodeFriendlyString string() {
@@ -66,27 +185,72 @@ final class TransliterationChart {
     return scriptMapping;
   }
 
+  /**
+   * The code points of {@link #string()}, one per character position. The returned array is
+   * owned by the chart, must not be modified, and may be longer than the string, so callers should
+   * only look at its first {@code string().lengthInCodePoints()} entries.
+   */
+  int[] codePoints() {
+    if (!codePointsDecoded) {
+      final String codeUnits = string.utf16CodeUnits();
+      if (codePoints.length < numPositions - 1) {
+        codePoints = new int[numPositions - 1];
+      }
+      for (int codeUnitOffset = 0, position = 0; codeUnitOffset < codeUnits.length(); ++position) {
+        final int codePoint = codeUnits.codePointAt(codeUnitOffset);
+        codePoints[position] = codePoint;
+        codeUnitOffset += Character.charCount(codePoint);
+      }
+      codePointsDecoded = true;
+    }
+    return codePoints;
+  }
+
   /**
    * Adds a possible transliteration of the characters covered by {@code edge}.
    *
    * @param derivation why the edge was added
    */
   public void addEdge(ChartEdge edge, String derivation) {
+    checkArgument(edge.startPosition() >= 0);
     checkArgument(edge.endPosition() <= string.lengthInCodePoints());
-    allEdges.add(edge);
-    edgesStartingAt.put(edge.startPosition(), edge);
-    edgesEndingAt.put(edge.endPosition(), edge);
-    for (int i = edge.startPosition(); i<edge.endPosition(); ++i) {
-      edgesIncluding.put(i, edge);
+    final int newEdge = addEdge(edge.startPosition(), edge.endPosition(),
+        edge.spanTransliteration(), edge.score());
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, derivation);
     }
-    derivations.put(edge, derivation);
+  }
+
+  /**
+   * Like {@link #addEdge(ChartEdge, String)}, but without creating a {@link ChartEdge}.
+   */
+  @Override
+  public void addEdge(final int startPosition, final int endPosition, final String transliteration,
+      final double score, final String derivation) {
+    checkArgument(startPosition >= 0);
+    checkArgument(endPosition > startPosition);
+    checkArgument(endPosition <= string.lengthInCodePoints());
+    final int newEdge = addEdge(startPosition, endPosition, transliteration, score);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, derivation);
+    }
+  }
+
+  /**
+   * Describes how the most recently added edge equal to {@code edge} came to be, if this chart
+   * tracks derivations.  This is intended for debugging.
+   */
+  public Optional<String> derivationOf(ChartEdge edge) {
+    return derivations != null
+        ? Optional.fromNullable(derivations.render(findEdge(edge)))
+        : Optional.<String>absent();
   }
 
   /**
    * Gets all edges starting at {@code startPosition}
    */
   public ImmutableList<ChartEdge> edgesStartingAt(final int startPosition) {
-    return ImmutableList.copyOf(edgesStartingAt.get(startPosition));
+    return copyEdges(newCursor().startingAt(startPosition));
   }
 
   /**
@@ -94,31 +258,254 @@ final class TransliterationChart {
    */
   public ImmutableList<ChartEdge> edgesEndingAt(int endPosition) {
     // we make an immutable copy to prevent ConcurrentModificationExceptions
-    return ImmutableList.copyOf(edgesEndingAt.get(endPosition));
+    return copyEdges(newCursor().endingAt(endPosition));
   }
 
   /**
    * Gets all edges starting at {@code start} and ending at {@code end}.
    */
   public ImmutableList<ChartEdge> edgesFromTo(final int start, final int end) {
-    checkArgument(start >= 0);
-    checkArgument(end > start);
+    return copyEdges(newCursor().fromTo(start, end));
+  }
 
-    final ImmutableList.Builder<ChartEdge> ret = ImmutableList.builder();
-    for (final ChartEdge chartEdge : edgesStartingAt.get(start)) {
-      if (chartEdge.endPosition() == end) {
-        ret.add(chartEdge);
+  /**
+   * Gets all edges which start at or before {@code position} and end after {@code position}.
+   * This means they transliterate the character at {@code position} in the source string.
+   */
+  public ImmutableList<ChartEdge> edgesIncluding(final int position) {
+    int[] including = new int[8];
+    int numIncluding = 0;
+    for (final EdgeCursor cursor = newCursor().including(position); cursor.next(); ) {
+      if (numIncluding == including.length) {
+        including = Arrays.copyOf(including, 2 * numIncluding);
       }
+      including[numIncluding++] = cursor.edge();
+    }
+    // edge IDs are in the order edges were added
+    Arrays.sort(including, 0, numIncluding);
+
+    final ImmutableList.Builder<ChartEdge> ret = ImmutableList.builder();
+    for (int i = 0; i < numIncluding; ++i) {
+      ret.add(edge(including[i]));
     }
     return ret.build();
   }
 
   /**
-   * Gets all edges which start at or before {@code position} and end after {@code position}.
-   * This means they transliterate the character at {@code position} in the source string.
+   * Creates a cursor for iterating over this chart's edges without copying them. See
+   * {@link EdgeCursor}.  A cursor may be re-positioned any number of times, so rule blocks
+   * typically create the few they need once per chart.
    */
-  public ImmutableList<ChartEdge> edgesIncluding(final int position) {
-    return ImmutableList.copyOf(edgesIncluding.get(position));
+  EdgeCursor newCursor() {
+    return new EdgeCursor();
+  }
+
+  /**
+   * The start position of the edge with ID {@code edge}.
+   */
+  int startOf(final int edge) {
+    return edgeStarts[edge];
+  }
+
+  /**
+   * The end position of the edge with ID {@code edge}.
+   */
+  int endOf(final int edge) {
+    return edgeEnds[edge];
+  }
+
+  /**
+   * The transliteration of the edge with ID {@code edge}.
+   */
+  String transliterationOf(final int edge) {
+    return outputs.get(edgeOutputs[edge]);
+  }
+
+  /**
+   * The score of the edge with ID {@code edge}.
+   */
+  double scoreOf(final int edge) {
+    return edgeScores[edge];
+  }
+
+  /**
+   * Iterates over the IDs of some of the chart's edges without copying them.  Position the
+   * cursor with one of {@link #startingAt(int)}, {@link #endingAt(int)},
+   * {@link #fromTo(int, int)} or {@link #including(int)} and then call {@link #next()} until it
+   * returns {@code false}:
+   *
+   * <pre>
+   *   for (cursor.endingAt(position); cursor.next(); ) {
+   *     ... cursor.transliteration() ... chart.addExtended(cursor.edge(), ...) ...
+   *   }
+   * </pre>
+   *
+   * A cursor sees exactly the edges which were in the chart when it was positioned, just like
+   * the copies returned by {@link #edgesEndingAt(int)} and friends. Edges may be added to the
+   * chart while a cursor is open; they are visible to cursors positioned afterwards but never to
+   * the open one. Edges are visited in the order they were added, except that
+   * {@link #including(int)} visits them grouped by start position. Edges superseded by an edge
+   * the cursor can see are skipped.
+   */
+  final class EdgeCursor {
+
+    private static final int STARTING_AT = 0;
+    private static final int ENDING_AT = 1;
+    private static final int FROM_TO = 2;
+    private static final int INCLUDING = 3;
+
+    private int mode;
+    private int position;
+    private int end;
+    // edges with IDs at or above this bound were added after the cursor was positioned
+    private int edgeBound;
+    // for INCLUDING, the start position whose edge list we are currently walking
+    private int currentStart;
+    private int current = NO_EDGE;
+    private boolean started;
+
+    private EdgeCursor() {
+      reset(STARTING_AT, 0, 0);
+    }
+
+    /**
+     * Positions the cursor before the edges starting at {@code startPosition}.
+     */
+    EdgeCursor startingAt(final int startPosition) {
+      return reset(STARTING_AT, startPosition, 0);
+    }
+
+    /**
+     * Positions the cursor before the edges ending at {@code endPosition}.
+     */
+    EdgeCursor endingAt(final int endPosition) {
+      return reset(ENDING_AT, endPosition, 0);
+    }
+
+    /**
+     * Positions the cursor before the edges starting at {@code start} and ending at
+     * {@code end}.
+     */
+    EdgeCursor fromTo(final int start, final int end) {
+      checkArgument(start >= 0);
+      checkArgument(end > start);
+      return reset(FROM_TO, start, end);
+    }
+
+    /**
+     * Positions the cursor before the edges which start at or before {@code position} and end
+     * after it.
+     */
+    EdgeCursor including(final int position) {
+      return reset(INCLUDING, position, 0);
+    }
+
+    /**
+     * Advances to the next edge, returning {@code false} if there are no more.
+     */
+    boolean next() {
+      if (!isPosition(position)) {
+        return false;
+      }
+      do {
+        advance();
+        // each position's edges are linked in increasing ID order, so nothing after an edge
+        // added since positioning can be older than it
+        if (current == NO_EDGE || current >= edgeBound) {
+          position = -1;
+          return false;
+        }
+      } while (supersededBy[current] < edgeBound);
+      return true;
+    }
+
+    private void advance() {
+      switch (mode) {
+        case STARTING_AT:
+          current = started ? nextStartingAtSamePosition[current] : firstStartingAt[position];
+          break;
+        case ENDING_AT:
+          current = started ? nextEndingAtSamePosition[current] : firstEndingAt[position];
+          break;
+        case FROM_TO:
+          current = started ? nextStartingAtSamePosition[current] : firstStartingAt[position];
+          while (current != NO_EDGE && current < edgeBound && edgeEnds[current] != end) {
+            current = nextStartingAtSamePosition[current];
+          }
+          break;
+        case INCLUDING:
+          current = started ? nextStartingAtSamePosition[current] : firstStartingAt[currentStart];
+          while (true) {
+            while (current != NO_EDGE && current < edgeBound && edgeEnds[current] <= position) {
+              current = nextStartingAtSamePosition[current];
+            }
+            if ((current != NO_EDGE && current < edgeBound) || currentStart == position) {
+              break;
+            }
+            current = firstStartingAt[++currentStart];
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown cursor mode " + mode);
+      }
+      started = true;
+    }
+
+    /**
+     * The ID of the current edge.
+     */
+    int edge() {
+      return current;
+    }
+
+    int start() {
+      return edgeStarts[current];
+    }
+
+    int end() {
+      return edgeEnds[current];
+    }
+
+    String transliteration() {
+      return outputs.get(edgeOutputs[current]);
+    }
+
+    /**
+     * Whether the current edge's transliteration has all of {@code features}, which are flags
+     * from {@link OutputStringTable}.
+     */
+    boolean hasFeatures(final int features) {
+      return (outputs.features(edgeOutputs[current]) & features) == features;
+    }
+
+    /**
+     * See {@link OutputStringTable#consonantPart(int)}.
+     */
+    String consonantPart() {
+      return outputs.consonantPart(edgeOutputs[current]);
+    }
+
+    /**
+     * See {@link OutputStringTable#vowelPart(int)}.
+     */
+    String vowelPart() {
+      return outputs.vowelPart(edgeOutputs[current]);
+    }
+
+    double score() {
+      return edgeScores[current];
+    }
+
+    private EdgeCursor reset(final int mode, final int position, final int end) {
+      this.mode = mode;
+      this.position = position;
+      this.end = end;
+      this.edgeBound = numEdges;
+      this.currentStart = Math.max(0, position - Math.max(maxEdgeLength, 1) + 1);
+      this.current = NO_EDGE;
+      this.started = false;
+      return this;
+    }
   }
 
   /**
@@ -135,13 +522,13 @@ final class TransliterationChart {
       final String newTransliteration,
       final double newScore, final String reason) {
     checkArgument(newEndPosition >= left.endPosition());
+    checkArgument(newEndPosition <= string.lengthInCodePoints());
 
-    addEdge(new ChartEdge.Builder()
-        .startPosition(left.startPosition())
-        .endPosition(newEndPosition)
-        .spanTransliteration(newTransliteration)
-        .score(newScore)
-        .build(), extendReason(left, reason));
+    final int newEdge = addEdge(left.startPosition(), newEndPosition, newTransliteration,
+        newScore);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, reason, EdgeDerivations.EXTENDED, findEdge(left));
+    }
   }
 
   /**
@@ -156,21 +543,15 @@ final class TransliterationChart {
   public void addMerged(final ChartEdge left, final ChartEdge right,
       final String combinedTransliteration, final double score, String reason) {
     checkArgument(left.endPosition() == right.startPosition());
-
-    if (derivations.containsKey(left)) {
-      reason += " [left:" + derivations.get(left) + "]";
-    }
-
-    if (derivations.containsKey(right)) {
-      reason += "[right: " + derivations.get(right) + "]";
+    checkArgument(left.startPosition() >= 0);
+    checkArgument(right.endPosition() <= string.lengthInCodePoints());
+
+    final int newEdge = addEdge(left.startPosition(), right.endPosition(),
+        combinedTransliteration, score);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, reason, EdgeDerivations.MERGED, findEdge(left),
+          findEdge(right));
     }
-
-    addEdge(new ChartEdge.Builder()
-        .startPosition(left.startPosition())
-        .endPosition(right.endPosition())
-        .spanTransliteration(combinedTransliteration)
-        .score(score)
-        .build(), reason);
   }
 
   /**
@@ -179,11 +560,70 @@ final class TransliterationChart {
    */
   public void addDerived(final Iterable<ChartEdge> sourceEdges, final ChartEdge newEdge,
       final String derivationReason) {
-    addEdge(newEdge, extendReason(sourceEdges, derivationReason));
+    checkArgument(newEdge.startPosition() >= 0);
+    checkArgument(newEdge.endPosition() <= string.lengthInCodePoints());
+
+    final int edge = addEdge(newEdge.startPosition(), newEdge.endPosition(),
+        newEdge.spanTransliteration(), newEdge.score());
+    if (derivations != null && edge != NO_EDGE) {
+      int[] parents = new int[2];
+      int numParents = 0;
+      for (final ChartEdge sourceEdge : sourceEdges) {
+        if (numParents == parents.length) {
+          parents = Arrays.copyOf(parents, 2 * numParents);
+        }
+        parents[numParents++] = findEdge(sourceEdge);
+      }
+      derivations.record(edge, derivationReason, EdgeDerivations.EXTENDED, parents, numParents);
+    }
   }
 
-  // warnings suppressed because IntelliJ worries getRowKey() and getColumnKey() may return null,
-  // but we know they won't because we populate them
+  /**
+   * Like {@link #addExtended(ChartEdge, int, String, double, String)}, but extends the edge with
+   * ID {@code leftEdge}.
+   */
+  void addExtended(final int leftEdge, final int newEndPosition,
+      final String newTransliteration, final double newScore, final String reason) {
+    checkArgument(newEndPosition >= edgeEnds[leftEdge]);
+    checkArgument(newEndPosition <= string.lengthInCodePoints());
+
+    final int newEdge = addEdge(edgeStarts[leftEdge], newEndPosition, newTransliteration,
+        newScore);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, reason, EdgeDerivations.EXTENDED, leftEdge);
+    }
+  }
+
+  /**
+   * Like {@link #addMerged(ChartEdge, ChartEdge, String, double, String)}, but merges the edges
+   * with IDs {@code leftEdge} and {@code rightEdge}.
+   */
+  void addMerged(final int leftEdge, final int rightEdge,
+      final String combinedTransliteration, final double score, String reason) {
+    checkArgument(edgeEnds[leftEdge] == edgeStarts[rightEdge]);
+
+    final int newEdge = addEdge(edgeStarts[leftEdge], edgeEnds[rightEdge],
+        combinedTransliteration, score);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, reason, EdgeDerivations.MERGED, leftEdge, rightEdge);
+    }
+  }
+
+  /**
+   * Adds an edge spanning from the start of the edge with ID {@code leftEdge} to the end of the
+   * edge with ID {@code rightEdge} while tracking for derivation purposes that it came from them.
+   */
+  void addDerived(final int leftEdge, final int rightEdge, final String transliteration,
+      final double score, final String derivationReason) {
+    checkArgument(edgeStarts[leftEdge] < edgeEnds[rightEdge]);
+
+    final int newEdge = addEdge(edgeStarts[leftEdge], edgeEnds[rightEdge], transliteration,
+        score);
+    if (derivations != null && newEdge != NO_EDGE) {
+      derivations.record(newEdge, derivationReason, EdgeDerivations.EXTENDED, leftEdge,
+          rightEdge);
+    }
+  }
 
   /**
    * Gets the highest scoring decoding of this chart.  If no decoding can be found (i.e. there is
@@ -192,68 +632,303 @@ final class TransliterationChart {
    *
    * Higher scores are considered better.
    */
-  @SuppressWarnings("ConstantConditions")
   public Optional<UnicodeFriendlyString> bestDecoding() {
     if (string().isEmpty()) {
       return Optional.of(string());
     }
 
-    // backpointers - what is the most recent edge on our best path up to the given position?
-    final List<Scored<ChartEdge>> bestStepToPosition = new ArrayList<>();
-    for (int i = 0; i<=string.lengthInCodePoints(); ++i) {
-      bestStepToPosition.add(Scored.<ChartEdge>from(null, i == 0 ? 0 : Double.NEGATIVE_INFINITY));
+    decoding.setLength(0);
+    if (appendBestDecoding(0.0, decoding) > Double.NEGATIVE_INFINITY) {
+      return Optional.of(StringUtils.unicodeFriendly(decoding.toString()));
+    } else {
+      return Optional.absent();
     }
+  }
 
-    for (final ChartEdge edge : EARLIER_THEN_SHORTER.immutableSortedCopy(allEdges)) {
-      final double pathScore = bestStepToPosition.get(edge.startPosition()).score()
-          + edge.score();
-      if (bestStepToPosition.get(edge.endPosition()).score() < pathScore) {
-        bestStepToPosition.set(edge.endPosition(), Scored.from(edge, pathScore));
+  /**
+   * Appends the transliteration along the highest scoring path through this chart to
+   * {@code out} and returns that path's score, where every path's score starts from
+   * {@code initialScore}. If there is no path, nothing is appended and
+   * {@link Double#NEGATIVE_INFINITY} is returned.
+   *
+   * Starting from {@code initialScore} lets this chart cover just part of a string: it then
+   * breaks ties between paths exactly as a chart of the whole string would, given a best path
+   * to this chart's start with that score.
+   */
+  double appendBestDecoding(final double initialScore, final StringBuilder out) {
+    final int length = string.lengthInCodePoints();
+    if (length == 0) {
+      return initialScore;
+    }
+    if (bestScoreToPosition.length < length + 1) {
+      bestScoreToPosition = new double[length + 1];
+      bestStepToPosition = new int[length + 1];
+      bestPath = new int[length];
+    }
+    Arrays.fill(bestScoreToPosition, 0, length + 1, Double.NEGATIVE_INFINITY);
+    Arrays.fill(bestStepToPosition, 0, length + 1, NO_EDGE);
+    bestScoreToPosition[0] = initialScore;
+
+    // Every edge ending at a position starts before it, so walking the edges start position by
+    // start position finalizes each position's best score before it is extended. Within a start
+    // position we go in the order edges were added. Since we only replace a backpointer on a
+    // strictly better score, ties go to the earliest-starting edge and then the earliest added,
+    // just as if all edges were stably sorted by span.
+    for (int start = 0; start < length; ++start) {
+      final double bestScoreToStart = bestScoreToPosition[start];
+      if (bestScoreToStart == Double.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int edge = firstStartingAt[start]; edge != NO_EDGE;
+           edge = nextStartingAtSamePosition[edge]) {
+        if (supersededBy[edge] != NOT_SUPERSEDED) {
+          continue;
+        }
+        final double pathScore = bestScoreToStart + edgeScores[edge];
+        final int end = edgeEnds[edge];
+        if (bestScoreToPosition[end] < pathScore) {
+          bestScoreToPosition[end] = pathScore;
+          bestStepToPosition[end] = edge;
+        }
       }
     }
 
-    final Scored<ChartEdge> finalStep = bestStepToPosition.get(string.lengthInCodePoints());
-    if (finalStep.score() > Double.NEGATIVE_INFINITY) {
-      final List<String> parts = new ArrayList<>();
-      Scored<ChartEdge> curStep = finalStep;
-        while (curStep.item().startPosition() > 0) {
-          parts.add(curStep.item().spanTransliteration());
-          curStep = bestStepToPosition.get(curStep.item().startPosition());
+    if (bestScoreToPosition[length] > Double.NEGATIVE_INFINITY) {
+      int numSteps = 0;
+      for (int pos = length; pos > 0; pos = edgeStarts[bestStepToPosition[pos]]) {
+        bestPath[numSteps++] = bestStepToPosition[pos];
+      }
+
+      for (int i = numSteps - 1; i >= 0; --i) {
+        out.append(outputs.get(edgeOutputs[bestPath[i]]));
+      }
+    }
+    return bestScoreToPosition[length];
+  }
+
+  /**
+   * The number of edges added so far. Edge IDs are assigned consecutively from zero.
+   */
+  int numEdges() {
+    return numEdges;
+  }
+
+  /**
+   * Assigns the edges with IDs from {@code fromEdge} on to {@code group} for a later call to
+   * {@link #groupEdgesEndingAt(int, int)}.
+   */
+  void assignToGroup(final int fromEdge, final int group) {
+    if (edgeGroups.length < numEdges) {
+      edgeGroups = Arrays.copyOf(edgeGroups, Math.max(numEdges, 2 * edgeGroups.length));
+    }
+    Arrays.fill(edgeGroups, fromEdge, numEdges, group);
+  }
+
+  /**
+   * Stably reorders the edges ending at each position so that the edges with IDs from
+   * {@code firstEdge} on come in order of the groups given by
+   * {@link #assignToGroup(int, int)}, which must run from zero to {@code numGroups - 1}. Edges
+   * with smaller IDs are left in front.
+   *
+   * This lets several rule blocks add their edges in a single pass over the string while leaving
+   * the chart exactly as if each block had made its own pass in group order. Edges starting at a
+   * position are added in the same order either way, but edges ending at a position are not.
+   */
+  void groupEdgesEndingAt(final int firstEdge, final int numGroups) {
+    // cut the new edges off the end of each list...
+    for (int edge = firstEdge; edge < numEdges; ++edge) {
+      final int end = edgeEnds[edge];
+      if (lastEndingAt[end] >= firstEdge) {
+        lastEndingAt[end] = NO_EDGE;
+        for (int oldEdge = firstEndingAt[end]; oldEdge < firstEdge;
+             oldEdge = nextEndingAtSamePosition[oldEdge]) {
+          lastEndingAt[end] = oldEdge;
+        }
+        if (lastEndingAt[end] == NO_EDGE) {
+          firstEndingAt[end] = NO_EDGE;
+        }
+      }
+    }
+    // ...and put them back group by group
+    for (int group = 0; group < numGroups; ++group) {
+      for (int edge = firstEdge; edge < numEdges; ++edge) {
+        if (edgeGroups[edge] == group) {
+          final int end = edgeEnds[edge];
+          nextEndingAtSamePosition[edge] = NO_EDGE;
+          if (firstEndingAt[end] == NO_EDGE) {
+            firstEndingAt[end] = edge;
+          } else {
+            nextEndingAtSamePosition[lastEndingAt[end]] = edge;
+          }
+          lastEndingAt[end] = edge;
         }
-      parts.add(curStep.item().spanTransliteration());
+      }
+    }
+  }
 
-      Collections.reverse(parts);
+  // private implementation
 
-      final StringBuilder sb = new StringBuilder();
-      for (final String part : parts) {
-        sb.append(part);
+  /**
+   * Adds an edge unless the chart already has an edge over the same span with the same
+   * transliteration and at least the same score, or the span already has its maximum number of
+   * edges, all scoring at least as well. Returns the new edge's ID, or {@link #NO_EDGE} if it was
+   * not added.
+   */
+  private int addEdge(final int start, final int end, final String transliteration,
+      final double score) {
+    final int output = outputs.intern(transliteration);
+    final int slot = findSlot(start, end, output);
+    final int sameOutput = edgesBySpanAndOutput[slot];
+    if (sameOutput != NO_EDGE && edgeScores[sameOutput] >= score) {
+      return NO_EDGE;
+    }
+    // the edge with the same output may already have been dropped from a full span
+    int superseded = sameOutput != NO_EDGE && supersededBy[sameOutput] == NOT_SUPERSEDED
+        ? sameOutput : NO_EDGE;
+    if (superseded == NO_EDGE && maxEdgesPerSpan != Integer.MAX_VALUE) {
+      superseded = worstEdgeIfSpanFull(start, end);
+      if (superseded != NO_EDGE && edgeScores[superseded] >= score) {
+        return NO_EDGE;
       }
-      return Optional.of(StringUtils.unicodeFriendly(sb.toString()));
+    }
+
+    final int edge = numEdges;
+    if (edge == edgeStarts.length) {
+      final int newCapacity = 2 * edgeStarts.length;
+      edgeStarts = Arrays.copyOf(edgeStarts, newCapacity);
+      edgeEnds = Arrays.copyOf(edgeEnds, newCapacity);
+      edgeOutputs = Arrays.copyOf(edgeOutputs, newCapacity);
+      edgeScores = Arrays.copyOf(edgeScores, newCapacity);
+      supersededBy = Arrays.copyOf(supersededBy, newCapacity);
+      nextStartingAtSamePosition = Arrays.copyOf(nextStartingAtSamePosition, newCapacity);
+      nextEndingAtSamePosition = Arrays.copyOf(nextEndingAtSamePosition, newCapacity);
+    }
+    edgeStarts[edge] = start;
+    edgeEnds[edge] = end;
+    edgeOutputs[edge] = output;
+    edgeScores[edge] = score;
+    supersededBy[edge] = NOT_SUPERSEDED;
+    if (superseded != NO_EDGE && supersededBy[superseded] == NOT_SUPERSEDED) {
+      supersededBy[superseded] = edge;
+    }
+    nextStartingAtSamePosition[edge] = NO_EDGE;
+    nextEndingAtSamePosition[edge] = NO_EDGE;
+    ++numEdges;
+    edgesBySpanAndOutput[slot] = edge;
+    if (sameOutput == NO_EDGE && 2 * ++numSpansAndOutputs > edgesBySpanAndOutput.length) {
+      rehash(2 * edgesBySpanAndOutput.length);
+    }
+
+    if (firstStartingAt[start] == NO_EDGE) {
+      firstStartingAt[start] = edge;
     } else {
-      return Optional.absent();
+      nextStartingAtSamePosition[lastStartingAt[start]] = edge;
+    }
+    lastStartingAt[start] = edge;
+    if (firstEndingAt[end] == NO_EDGE) {
+      firstEndingAt[end] = edge;
+    } else {
+      nextEndingAtSamePosition[lastEndingAt[end]] = edge;
     }
+    lastEndingAt[end] = edge;
+    maxEdgeLength = Math.max(maxEdgeLength, end - start);
+    return edge;
   }
 
-  // private implementation
+  /**
+   * If {@link #maxEdgesPerSpan} edges from {@code start} to {@code end} are not superseded,
+   * returns the lowest scoring of them, preferring the most recently added in case of ties.
+   * Otherwise returns {@link #NO_EDGE}.
+   */
+  private int worstEdgeIfSpanFull(final int start, final int end) {
+    int numOverSpan = 0;
+    int worst = NO_EDGE;
+    for (int edge = firstStartingAt[start]; edge != NO_EDGE;
+         edge = nextStartingAtSamePosition[edge]) {
+      if (edgeEnds[edge] == end && supersededBy[edge] == NOT_SUPERSEDED) {
+        ++numOverSpan;
+        if (worst == NO_EDGE || edgeScores[edge] <= edgeScores[worst]) {
+          worst = edge;
+        }
+      }
+    }
+    return numOverSpan >= maxEdgesPerSpan ? worst : NO_EDGE;
+  }
+
+  /**
+   * The slot of {@link #edgesBySpanAndOutput} holding the edge with the given span and output,
+   * or the empty slot where it belongs if there is none.
+   */
+  private int findSlot(final int start, final int end, final int output) {
+    final int mask = edgesBySpanAndOutput.length - 1;
+    int slot = hash(start, end, output) & mask;
+    while (true) {
+      final int edge = edgesBySpanAndOutput[slot];
+      if (edge == NO_EDGE || (edgeStarts[edge] == start && edgeEnds[edge] == end
+          && edgeOutputs[edge] == output)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void rehash(final int newNumSlots) {
+    edgesBySpanAndOutput = newSlots(newNumSlots);
+    // for each span and output, later edges always supersede earlier ones
+    for (int edge = 0; edge < numEdges; ++edge) {
+      edgesBySpanAndOutput[findSlot(edgeStarts[edge], edgeEnds[edge], edgeOutputs[edge])] = edge;
+    }
+  }
 
-  private static final Ordering<ChartEdge> EARLIER_THEN_SHORTER = Ordering.natural()
-      .onResultOf(ChartEdgeFunctions.startPosition())
-      .compound(Ordering.natural().onResultOf(ChartEdgeFunctions.endPosition()));
+  private static int hash(final int start, final int end, final int output) {
+    final int h = (31 * start + end) * 31 + output;
+    return h ^ (h >>> 16);
+  }
 
+  private static int[] newSlots(final int numSlots) {
+    final int[] ret = new int[numSlots];
+    Arrays.fill(ret, NO_EDGE);
+    return ret;
+  }
 
-  private String extendReason(ChartEdge baseEdge, String derivationReason) {
-    return extendReason(ImmutableList.of(baseEdge), derivationReason);
+  private ImmutableList<ChartEdge> copyEdges(final EdgeCursor cursor) {
+    final ImmutableList.Builder<ChartEdge> ret = ImmutableList.builder();
+    while (cursor.next()) {
+      ret.add(edge(cursor.edge()));
+    }
+    return ret.build();
   }
 
-  private String extendReason(Iterable<ChartEdge> baseEdges, String derivationReason) {
-    final StringBuilder ret = new StringBuilder();
-    ret.append(derivationReason);
-    for (final ChartEdge baseEdge : baseEdges) {
-      final String baseEdgeDerivation = derivations.get(baseEdge);
-      if (baseEdgeDerivation != null) {
-        ret.append(" [left: ").append(baseEdgeDerivation) .append("]");
+  private ChartEdge edge(final int edge) {
+    return new ChartEdge.Builder()
+        .startPosition(edgeStarts[edge])
+        .endPosition(edgeEnds[edge])
+        .spanTransliteration(outputs.get(edgeOutputs[edge]))
+        .score(edgeScores[edge])
+        .build();
+  }
+
+  /**
+   * The ID of the most recently added edge equal to {@code chartEdge}, or
+   * {@link EdgeDerivations#NO_PARENT} if there is none.
+   */
+  private int findEdge(final ChartEdge chartEdge) {
+    int ret = EdgeDerivations.NO_PARENT;
+    if (isPosition(chartEdge.startPosition())) {
+      for (int edge = firstStartingAt[chartEdge.startPosition()]; edge != NO_EDGE;
+           edge = nextStartingAtSamePosition[edge]) {
+        if (edgeEnds[edge] == chartEdge.endPosition()
+            && Double.doubleToLongBits(edgeScores[edge])
+            == Double.doubleToLongBits(chartEdge.score())
+            && outputs.get(edgeOutputs[edge]).equals(chartEdge.spanTransliteration())) {
+          ret = edge;
+        }
       }
     }
-    return ret.toString();
+    return ret;
+  }
+
+  private boolean isPosition(final int position) {
+    return position >= 0 && position < numPositions;
   }
 }
@@ -0,0 +1,231 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.StringUtils;
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Transliterates text which arrives in pieces, producing output as soon as it is certain. The
+ * concatenation of everything returned by {@link #append(UnicodeFriendlyString)} and
+ * {@link #finish()} is the transliteration of the concatenation of the input pieces.
+ *
+ * With a transliterator which can skip building charts for context-free code points (see
+ * {@link DefaultTransliterator.LocalRuleBlock}), each context-free code point is output once a
+ * few more code points have arrived after it. Spans needing a chart are output once they end. For
+ * other transliterators, all output is held back until {@link #finish()}.
+ *
+ * If the transliterator can find no transliteration of some span, that span is copied to the
+ * output unchanged. {@link Transliterator#transliterate(UnicodeFriendlyString)} would instead
+ * return the whole input unchanged. This cannot happen with the standard transliterators, which
+ * can always fall back to copying single characters.
+ *
+ * This object is mutable and not thread-safe.
+ */
+public final class TransliterationStream {
+
+  private final Transliterator transliterator;
+  // null if we can't stream
+  private final DefaultTransliterator defaultTransliterator;
+  private final ContextFreeCodePoints contextFreeCodePoints;
+
+  // input code units which we have not produced output for yet
+  private final StringBuilder pending = new StringBuilder();
+  // for each code point of pending we have looked up, its decoding (null if it needs a chart)
+  // and where it starts in pending. codeUnitOffsets[numPending] is where the rest starts.
+  private ContextFreeCodePoints.Decoding[] decodings = new ContextFreeCodePoints.Decoding[16];
+  private int[] codeUnitOffsets = new int[17];
+  private int numPending = 0;
+  // the score of the best path through the chart of all the input we have output so far
+  private double score = 0.0;
+  private boolean foundNoPath = false;
+
+  private TransliterationStream(final Transliterator transliterator,
+      final DefaultTransliterator defaultTransliterator,
+      final ContextFreeCodePoints contextFreeCodePoints) {
+    this.transliterator = checkNotNull(transliterator);
+    this.defaultTransliterator = defaultTransliterator;
+    this.contextFreeCodePoints = contextFreeCodePoints;
+  }
+
+  public static TransliterationStream create(final Transliterator transliterator) {
+    if (transliterator instanceof DefaultTransliterator) {
+      return forDefaultTransliterator((DefaultTransliterator) transliterator);
+    }
+    return new TransliterationStream(transliterator, null, null);
+  }
+
+  static TransliterationStream forDefaultTransliterator(
+      final DefaultTransliterator transliterator) {
+    if (transliterator.contextFreeCodePoints().isPresent()) {
+      return new TransliterationStream(transliterator, transliterator,
+          transliterator.contextFreeCodePoints().get());
+    }
+    return new TransliterationStream(transliterator, null, null);
+  }
+
+  /**
+   * Adds {@code text} to the input and returns whatever output is now certain.
+   */
+  public UnicodeFriendlyString append(final UnicodeFriendlyString text) {
+    addText(text.utf16CodeUnits());
+    final StringBuilder out = new StringBuilder();
+    decode(false, out);
+    return StringUtils.unicodeFriendly(out.toString());
+  }
+
+  /**
+   * Marks the end of the input and returns the rest of the output. The stream may then be used
+   * for a new input.
+   */
+  public UnicodeFriendlyString finish() {
+    final StringBuilder out = new StringBuilder();
+    decode(true, out);
+    score = 0.0;
+    foundNoPath = false;
+    return StringUtils.unicodeFriendly(out.toString());
+  }
+
+  /**
+   * Adds {@code codeUnits} to the input.
+   */
+  void addText(final String codeUnits) {
+    pending.append(codeUnits);
+    if (contextFreeCodePoints != null) {
+      lookUpCodePoints(false);
+    }
+  }
+
+  /**
+   * Looks up the code points of the pending input we have not looked at yet. Unless
+   * {@code atEnd}, a trailing high surrogate is held back, since the next piece of input might
+   * complete it.
+   */
+  private void lookUpCodePoints(final boolean atEnd) {
+    int codeUnitOffset = codeUnitOffsets[numPending];
+    while (codeUnitOffset < pending.length()) {
+      if (!atEnd && codeUnitOffset == pending.length() - 1
+          && Character.isHighSurrogate(pending.charAt(codeUnitOffset))) {
+        break;
+      }
+      final int codePoint = Character.codePointAt(pending, codeUnitOffset);
+      if (numPending == decodings.length) {
+        decodings = Arrays.copyOf(decodings, 2 * numPending);
+        codeUnitOffsets = Arrays.copyOf(codeUnitOffsets, 2 * numPending + 1);
+      }
+      decodings[numPending] = contextFreeCodePoints.decodingOf(codePoint);
+      codeUnitOffsets[numPending] = codeUnitOffset;
+      ++numPending;
+      codeUnitOffset += Character.charCount(codePoint);
+    }
+    codeUnitOffsets[numPending] = codeUnitOffset;
+  }
+
+  /**
+   * Appends to {@code out} the output for as much of the pending input as is certain, or all of
+   * it if {@code atEnd}.
+   */
+  void decode(final boolean atEnd, final StringBuilder out) {
+    if (contextFreeCodePoints == null) {
+      if (atEnd) {
+        out.append(transliterator.transliterate(
+            StringUtils.unicodeFriendly(pending.toString())).utf16CodeUnits());
+        pending.setLength(0);
+      }
+      return;
+    }
+    if (atEnd) {
+      lookUpCodePoints(true);
+    }
+
+    // No edge crosses the boundaries between regions needing charts and the context-free code
+    // points around them, so every path through the whole chart passes through these
+    // boundaries. We can therefore decode each region given the best path to its start. A
+    // region also covers the context-free code points in the left margin of any code point
+    // needing a chart, so we can't output context-free code points until we know whether they
+    // are in such a margin.
+    final int margin = contextFreeCodePoints.leftMargin();
+    int position = 0;
+    while (position < numPending) {
+      int needsChart = position;
+      while (needsChart < numPending && decodings[needsChart] != null) {
+        ++needsChart;
+      }
+      if (needsChart == numPending) {
+        final int certain = atEnd ? numPending : Math.max(position, numPending - margin);
+        for (; position < certain; ++position) {
+          score = decodings[position].extendBestPath(score, out);
+        }
+        break;
+      }
+
+      final int regionStart = Math.max(position, needsChart - margin);
+      for (; position < regionStart; ++position) {
+        score = decodings[position].extendBestPath(score, out);
+      }
+
+      // extend the region over the code points needing a chart and over any context-free ones
+      // which are in the left margin of the next code point needing a chart
+      int regionEnd = needsChart;
+      boolean regionEnded;
+      while (true) {
+        if (regionEnd == numPending) {
+          regionEnded = atEnd;
+          break;
+        }
+        if (decodings[regionEnd] == null) {
+          ++regionEnd;
+          continue;
+        }
+        int next = regionEnd;
+        while (next < numPending && next - regionEnd < margin && decodings[next] != null) {
+          ++next;
+        }
+        if (next - regionEnd >= margin) {
+          regionEnded = true;
+          break;
+        }
+        if (next == numPending) {
+          regionEnded = atEnd;
+          break;
+        }
+        regionEnd = next;
+      }
+      if (!regionEnded) {
+        break;
+      }
+
+      final String region =
+          pending.substring(codeUnitOffsets[regionStart], codeUnitOffsets[regionEnd]);
+      final int outLength = out.length();
+      score = defaultTransliterator.transliterateRegion(StringUtils.unicodeFriendly(region),
+          score, out);
+      if (score == Double.NEGATIVE_INFINITY) {
+        foundNoPath = true;
+        out.setLength(outLength);
+        out.append(region);
+        score = 0.0;
+      }
+      position = regionEnd;
+    }
+
+    // forget what we have output
+    final int removedCodeUnits = codeUnitOffsets[position];
+    pending.delete(0, removedCodeUnits);
+    System.arraycopy(decodings, position, decodings, 0, numPending - position);
+    Arrays.fill(decodings, numPending - position, numPending, null);
+    for (int i = position; i <= numPending; ++i) {
+      codeUnitOffsets[i - position] = codeUnitOffsets[i] - removedCodeUnits;
+    }
+    numPending -= position;
+  }
+
+  /**
+   * Whether some span of the input since the last {@link #finish()} had no transliteration.
+   */
+  boolean foundNoPath() {
+    return foundNoPath;
+  }
+}
@@ -5,12 +5,15 @@ import com.bbn.bue.common.UnicodeFriendlyString;
 import com.bbn.bue.common.parameters.Parameters;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.CharSource;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Provides;
 
 import org.slf4j.Logger;
@@ -18,13 +21,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Qualifier;
 import javax.inject.Singleton;
@@ -82,6 +92,43 @@ public interface Transliterator {
         "com.bbn.serif.transliterator.customMappings";
     public static final String PREFER_BASIC_ASCII =
         "com.bbn.serif.transliterator.preferBasicAscii";
+    /**
+     * Whether to record the derivation of every chart edge for debugging. Turning this off also
+     * drops the comments of the mapping files when they are parsed, since they are only used as
+     * derivations. Defaults to true.
+     */
+    public static final String TRACK_DERIVATIONS_PARAM =
+        "com.bbn.serif.transliterator.trackDerivations";
+    /**
+     * Whether each thread should reuse one transliteration chart across calls, which is faster
+     * for workloads of many short strings. Defaults to false.
+     */
+    public static final String REUSE_WORKSPACES_PARAM =
+        "com.bbn.serif.transliterator.reuseWorkspaces";
+    /**
+     * Whether to skip building charts for code points which are always transliterated the same
+     * way. This does not change the output. Defaults to true.
+     */
+    public static final String CONTEXT_FREE_FAST_PATH_PARAM =
+        "com.bbn.serif.transliterator.contextFreeFastPath";
+    /**
+     * Whether to decode strings which only need rules looking at the input left to right
+     * without building a chart. This does not change the output. Defaults to true.
+     */
+    public static final String INCREMENTAL_DECODING_PARAM =
+        "com.bbn.serif.transliterator.incrementalDecoding";
+    /**
+     * If specified, at most this many alternative transliterations are kept for any span of the
+     * input, which speeds up dense scripts but may change the output. Unlimited by default.
+     */
+    public static final String MAX_EDGES_PER_SPAN_PARAM =
+        "com.bbn.serif.transliterator.maxEdgesPerSpan";
+    /**
+     * At most this many threads are used to parse the mapping files, each file on one thread.
+     * Defaults to the number of processors.
+     */
+    public static final String LOADING_THREADS_PARAM =
+        "com.bbn.serif.transliterator.loadingThreads";
 
     public FromParamsModule(final Parameters parameters) {
       super(parameters);
@@ -105,10 +152,20 @@ public interface Transliterator {
         Script.CodePointToScriptMapper scriptMapper,
         @TransliteratorSubstringMappingLoaderP SubstringMapper.URomanSubstringMappingsLoader mappingsLoader)
         throws IOException {
+      final boolean trackDerivations = trackDerivations();
       final DefaultTransliterator.Builder generalTransliterator = new DefaultTransliterator.Builder()
           .scriptMapper(scriptMapper)
+          .trackDerivations(trackDerivations)
+          .reuseWorkspaces(params().getOptionalBoolean(REUSE_WORKSPACES_PARAM).or(false))
+          .useContextFreeFastPath(
+              params().getOptionalBoolean(CONTEXT_FREE_FAST_PATH_PARAM).or(true))
+          .useIncrementalDecoding(
+              params().getOptionalBoolean(INCREMENTAL_DECODING_PARAM).or(true))
+          .maxEdgesPerSpan(params().getOptionalPositiveInteger(MAX_EDGES_PER_SPAN_PARAM))
           .putRuleBlocksBySequenceNumber(DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
               TransliterateByUnicodeCharacterName.INSTANCE)
+          .putRuleBlocksBySequenceNumber(DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
+              HangulSyllables.INSTANCE)
           .putRuleBlocksBySequenceNumber(DiacriticDeletion.DEFAULT_SEQUENCE_NUMBER,
               DiacriticDeletion.INSTANCE)
           .putRuleBlocksBySequenceNumber(AbugidaRules.DEFAULT_SEQUENCE_NUMBER,
@@ -118,19 +175,26 @@ public interface Transliterator {
           .putRuleBlocksBySequenceNumber(BackoffTransliterationRules.DEFAULT_SEQUENCE_NUMBER,
               BackoffTransliterationRules.INSTANCE);
 
+      // all substring mappers are compiled together so the input is only scanned once
+      final List<SubstringMapper> mappers = new ArrayList<>();
       if (customMappings.isPresent()) {
-        generalTransliterator.putRuleBlocksBySequenceNumber(
-            DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
-            customMappings.get().generalMapper());
+        mappers.add(customMappings.get().generalMapper());
       }
+      mappers.add(unicodeOverwriteMappings);
+      // without derivations, the compiled mappers needn't hold the mappings' comments
       generalTransliterator.putRuleBlocksBySequenceNumber(
-          DefaultTransliterator.INDEPENDENT_INITIAL_STEP, unicodeOverwriteMappings);
+          DefaultTransliterator.INDEPENDENT_INITIAL_STEP, new MergedSubstringMappers.Builder()
+              .mappers(mappers).keepDerivations(trackDerivations).build());
       if (!params().getOptionalBoolean(SUPPRESS_DEFAULT_CJK_MAPPINGS_PARAM).or(false)) {
         log.info("Using default CJK transliterations");
+        // most inputs contain no Han characters, so we only load these if one turns up. They
+        // only map single Han characters, so no other mapper's edges tie with theirs and they
+        // needn't be merged with them.
         generalTransliterator.putRuleBlocksBySequenceNumber(
             DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
-            mappingsLoader.loadURomanCJKMappings(Resources.asCharSource(
-            Resources.getResource(Transliterator.class, "pinyin.txt"), UTF_8)));
+            LazyCJKMapper.loadingURomanCJKMappings(mappingsLoader, Resources.asCharSource(
+                Resources.getResource(Transliterator.class, "pinyin.txt"), UTF_8),
+                trackDerivations));
       }
       return generalTransliterator.build();
     }
@@ -140,20 +204,35 @@ public interface Transliterator {
     @Iso6392ToTransliterator
     SetMultimap<String, Transliterator> getLanguageSpecificTransliterators(
         @GeneralTransliterator Transliterator generalTransliterator,
-        Optional<SubstringMapper.LoadSubstringMappingsResult> customMappings) {
-      final ImmutableMap.Builder<String, Transliterator> ret = ImmutableMap.builder();
+        Optional<SubstringMapper.LoadSubstringMappingsResult> customMappings) throws IOException {
+      // cast is safe because we bind generalTransliterator in this same module.
+      final DefaultTransliterator defaultTransliterator =
+          (DefaultTransliterator) generalTransliterator;
+      final Map<String, DefaultTransliterator> ret = new LinkedHashMap<>();
 
       if (customMappings.isPresent()) {
         for (final Map.Entry<String, SubstringMapper> e : customMappings
             .get().languageSpecificMappers().entrySet()) {
-          ret.put(e.getKey(), new DefaultTransliterator.Builder()
-              // cast is safe because we bind generalTransliterator in this same module
-              .from((DefaultTransliterator)generalTransliterator)
-              .putRuleBlocksBySequenceNumber(DefaultTransliterator.INDEPENDENT_INITIAL_STEP, e.getValue()).build());
+          // The language's mappings are merged into the general ones so each language still
+          // matches all its mappings in one pass
+          ret.put(e.getKey(), defaultTransliterator
+              .withAdditionalMapper(DefaultTransliterator.INDEPENDENT_INITIAL_STEP, e.getValue()));
+        }
+      }
+
+      // the Ethiopic syllable charts used to be part of the default manual mappings
+      if (!params().getOptionalBoolean(SUPPRESS_DEFAULT_MANUAL_MAPPINGS_PARAM).or(false)) {
+        for (final String language : EthiopicSyllables.LANGUAGES) {
+          final DefaultTransliterator languageTransliterator =
+              ret.containsKey(language) ? ret.get(language) : defaultTransliterator;
+          ret.put(language, languageTransliterator.withAdditionalRuleBlock(
+              DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
+              EthiopicSyllables.forLanguage(language)));
         }
       }
 
-      return ImmutableSetMultimap.copyOf(ret.build().asMultimap());
+      return ImmutableSetMultimap.<String, Transliterator>copyOf(
+          ImmutableMap.copyOf(ret).asMultimap());
     }
 
     /**
@@ -166,10 +245,8 @@ public interface Transliterator {
 
     @Provides
     @UnicodeDataOverwriteMappings
-    SubstringMapper getUnicodeDataOverwrite() throws IOException {
-      return SubstringMapper.loadUromanUnicodeDataOverwriteMappings(
-          Resources.asCharSource(Resources.getResource(Transliterator.class, "UnicodeDataOverwrite.txt"),
-          UTF_8));
+    SubstringMapper getUnicodeDataOverwrite(URomanMappingTables mappingTables) {
+      return mappingTables.unicodeOverwriteMappings();
     }
 
     @Qualifier
@@ -189,7 +266,13 @@ public interface Transliterator {
       final boolean preferBasicAscii = params().getOptionalBoolean(PREFER_BASIC_ASCII).or(false);
 
       return new SubstringMapper.URomanSubstringMappingsLoader.Builder()
-          .preferExtendedLatinMappings(!preferBasicAscii).build();
+          .preferExtendedLatinMappings(!preferBasicAscii)
+          .keepComments(trackDerivations())
+          .build();
+    }
+
+    private boolean trackDerivations() {
+      return params().getOptionalBoolean(TRACK_DERIVATIONS_PARAM).or(true);
     }
 
     /**
@@ -198,8 +281,27 @@ public interface Transliterator {
      */
     @Provides
     Optional<SubstringMapper.LoadSubstringMappingsResult> getCustomMappings(
+        URomanMappingTables mappingTables) {
+      return mappingTables.customMappings();
+    }
+
+    /**
+     * All the mapping tables loaded from data files.
+     */
+    @Provides
+    @Singleton
+    URomanMappingTables getMappingTables(
         @TransliteratorSubstringMappingLoaderP SubstringMapper.URomanSubstringMappingsLoader mappingsLoader)
         throws IOException {
+      final CharSource unicodeOverwriteFile = Resources.asCharSource(
+          Resources.getResource(Transliterator.class, "UnicodeDataOverwrite.txt"), UTF_8);
+      final int maxLoadingThreads = params().getOptionalPositiveInteger(LOADING_THREADS_PARAM)
+          .or(Runtime.getRuntime().availableProcessors());
+      return loadMappingTables(mappingsLoader, customMappingsFiles(), unicodeOverwriteFile,
+          maxLoadingThreads);
+    }
+
+    private List<CharSource> customMappingsFiles() throws IOException {
       final List<CharSource> mappingsFiles = new ArrayList<>();
 
       if (!params().getOptionalBoolean(SUPPRESS_DEFAULT_MANUAL_MAPPINGS_PARAM).or(false)) {
@@ -217,12 +319,71 @@ public interface Transliterator {
         log.info("Loading custom transliterations from {}", customMappingsFile);
         mappingsFiles.add(Files.asCharSource(customMappingsFile, UTF_8));
       }
+      return mappingsFiles;
+    }
+
+    /**
+     * Parses each mapping file on its own thread, using at most {@code maxThreads} threads. The
+     * results are collected in the order the files would be parsed one after another, so if
+     * several files are bad, the error reported is always for the same one.
+     */
+    private static URomanMappingTables loadMappingTables(
+        final SubstringMapper.URomanSubstringMappingsLoader mappingsLoader,
+        final List<CharSource> customMappingsFiles, final CharSource unicodeOverwriteFile,
+        final int maxThreads) throws IOException {
+      final ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(maxThreads, customMappingsFiles.size() + 1),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("transliterator-loader-%d").build());
+      try {
+        final Future<SubstringMapper> unicodeOverwriteMappings =
+            executor.submit(new Callable<SubstringMapper>() {
+              @Override
+              public SubstringMapper call() throws IOException {
+                return SubstringMapper.loadUromanUnicodeDataOverwriteMappings(
+                    unicodeOverwriteFile, mappingsLoader.keepComments());
+              }
+            });
+        final List<Future<SubstringMapper.LoadSubstringMappingsResult>> customMappings =
+            new ArrayList<>();
+        for (final CharSource customMappingsFile : customMappingsFiles) {
+          customMappings.add(executor.submit(
+              new Callable<SubstringMapper.LoadSubstringMappingsResult>() {
+                @Override
+                public SubstringMapper.LoadSubstringMappingsResult call() throws IOException {
+                  return mappingsLoader.load(ImmutableList.of(customMappingsFile));
+                }
+              }));
+        }
+
+        final URomanMappingTables.Builder ret = new URomanMappingTables.Builder()
+            .unicodeOverwriteMappings(getLoaded(unicodeOverwriteMappings));
+        if (!customMappings.isEmpty()) {
+          final List<SubstringMapper.LoadSubstringMappingsResult> loaded = new ArrayList<>();
+          for (final Future<SubstringMapper.LoadSubstringMappingsResult> result
+              : customMappings) {
+            loaded.add(getLoaded(result));
+          }
+          ret.customMappings(SubstringMapper.LoadSubstringMappingsResult.concat(loaded));
+        } else {
+          log.info("Using no transliteration table files");
+        }
+        return ret.build();
+      } finally {
+        // abandons the remaining files if one fails
+        executor.shutdownNow();
+      }
+    }
 
-      if (!mappingsFiles.isEmpty()) {
-        return Optional.of(mappingsLoader.load(mappingsFiles));
-      } else {
-        log.info("Using no transliteration table files");
-        return Optional.absent();
+    private static <T> T getLoaded(final Future<T> result) throws IOException {
+      try {
+        return result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while loading transliteration mappings");
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new RuntimeException(e.getCause());
       }
     }
   }
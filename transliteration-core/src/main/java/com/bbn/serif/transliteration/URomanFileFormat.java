@@ -3,6 +3,9 @@ package com.bbn.serif.transliteration;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableListMultimap;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,6 +23,54 @@ final class URomanFileFormat {
   private static final Splitter ON_DOUBLE_COLONS = Splitter.on("::").omitEmptyStrings();
   private static final Splitter ON_SPACES_ONCE = Splitter.onPattern("\\s+").limit(2);
 
+  /**
+   * Does what {@code s.replaceAll("\\s*$", "")} would, without a regular expression.
+   */
+  static String stripTrailingWhitespace(final String s) {
+    final int length = s.length();
+    // $ also matches before a line terminator which ends the string
+    final int end = length > 0 && isLineSeparator(s.charAt(length - 1)) ? length - 1 : length;
+    int start = end;
+    while (start > 0 && isRegexWhitespace(s.charAt(start - 1))) {
+      --start;
+    }
+    if (start == end) {
+      return s;
+    }
+    return s.substring(0, start) + s.substring(end);
+  }
+
+  /**
+   * Strips one pair of double quotes enclosing all of {@code s}, and then one pair of single
+   * quotes, as uRoman does with mapping targets.
+   */
+  static String stripQuotes(final String s) {
+    return stripQuotes(stripQuotes(s, '"'), '\'');
+  }
+
+  private static String stripQuotes(final String s, final char quote) {
+    if (s.length() < 2 || s.charAt(0) != quote || s.charAt(s.length() - 1) != quote) {
+      return s;
+    }
+    // the quoted part can't span lines
+    for (int i = 1; i < s.length() - 1; ++i) {
+      if (isLineSeparator(s.charAt(i)) || s.charAt(i) == '\n' || s.charAt(i) == '\r') {
+        return s;
+      }
+    }
+    return s.substring(1, s.length() - 1);
+  }
+
+  // the characters \s matches in a regular expression
+  private static boolean isRegexWhitespace(final char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  // line terminators other than \n and \r
+  private static boolean isLineSeparator(final char c) {
+    return c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
   public static ImmutableListMultimap<String, String> parseColonDelimitedLine(final String line)
       throws SubstringMapper.BadMappingsFileException {
     final ImmutableListMultimap.Builder<String, String> ret = ImmutableListMultimap.builder();
@@ -35,4 +86,151 @@ final class URomanFileFormat {
 
     return ret.build();
   }
+
+  /**
+   * Reads a file in uRoman's {@code ::key value} format one line and one field at a time,
+   * splitting lines and fields exactly as {@link com.google.common.io.CharSource#readLines()} and
+   * {@link #parseColonDelimitedLine(String)} would. Lines are read into a reused buffer, so
+   * nothing is allocated except for the values asked for.
+   *
+   * This object is mutable and not thread-safe.
+   */
+  static final class FieldScanner {
+    private final Reader in;
+    private final char[] readBuffer = new char[8192];
+    private int readPosition = 0;
+    private int readLimit = 0;
+    // whether the last line ended with a carriage return, which a following newline belongs to
+    private boolean sawReturn = false;
+
+    private char[] line = new char[256];
+    private int lineLength = 0;
+    private int lineNumber = 0;
+
+    // the part of the line after the current field
+    private int nextFieldStart = 0;
+    private int keyStart;
+    private int keyEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    FieldScanner(final Reader in) {
+      this.in = in;
+    }
+
+    /**
+     * Moves to the next line, returning false if there are no more.
+     */
+    boolean nextLine() throws IOException {
+      lineLength = 0;
+      nextFieldStart = 0;
+      while (true) {
+        if (readPosition == readLimit) {
+          readLimit = in.read(readBuffer);
+          readPosition = 0;
+          if (readLimit < 0) {
+            readLimit = 0;
+            if (lineLength > 0) {
+              ++lineNumber;
+              return true;
+            }
+            return false;
+          }
+        }
+        final char c = readBuffer[readPosition++];
+        if (c == '\n' && sawReturn) {
+          sawReturn = false;
+        } else if (c == '\n' || c == '\r') {
+          sawReturn = c == '\r';
+          ++lineNumber;
+          return true;
+        } else {
+          sawReturn = false;
+          if (lineLength == line.length) {
+            line = Arrays.copyOf(line, 2 * line.length);
+          }
+          line[lineLength++] = c;
+        }
+      }
+    }
+
+    /**
+     * The number of the current line, counting from one.
+     */
+    int lineNumber() {
+      return lineNumber;
+    }
+
+    String line() {
+      return new String(line, 0, lineLength);
+    }
+
+    boolean isCommentLine() {
+      return lineLength == 0 || line[0] == '#';
+    }
+
+    /**
+     * Moves to the next field of the current line, returning false if there are no more. Any text
+     * before the first {@code ::} is a field too.
+     */
+    boolean nextField() throws SubstringMapper.BadMappingsFileException {
+      while (nextFieldStart < lineLength) {
+        final int start = nextFieldStart;
+        int end = start;
+        while (end < lineLength && !(line[end] == ':' && end + 1 < lineLength
+            && line[end + 1] == ':')) {
+          ++end;
+        }
+        nextFieldStart = end < lineLength ? end + 2 : lineLength;
+        if (end > start) {
+          splitField(start, end);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // the key is everything before the first run of whitespace and the value everything after
+    private void splitField(final int start, final int end)
+        throws SubstringMapper.BadMappingsFileException {
+      int whitespace = start;
+      while (whitespace < end && !isRegexWhitespace(line[whitespace])) {
+        ++whitespace;
+      }
+      if (whitespace == end) {
+        throw new SubstringMapper.BadMappingsFileException("Cannot parse line: " + line());
+      }
+      valueStart = whitespace;
+      while (valueStart < end && isRegexWhitespace(line[valueStart])) {
+        ++valueStart;
+      }
+      valueEnd = end;
+
+      // as String#trim does
+      keyStart = start;
+      keyEnd = whitespace;
+      while (keyStart < keyEnd && line[keyStart] <= ' ') {
+        ++keyStart;
+      }
+      while (keyEnd > keyStart && line[keyEnd - 1] <= ' ') {
+        --keyEnd;
+      }
+    }
+
+    boolean keyIs(final String key) {
+      if (keyEnd - keyStart != key.length()) {
+        return false;
+      }
+      for (int i = 0; i < key.length(); ++i) {
+        if (line[keyStart + i] != key.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    String value() {
+      return new String(line, valueStart, valueEnd - valueStart);
+    }
+  }
 }
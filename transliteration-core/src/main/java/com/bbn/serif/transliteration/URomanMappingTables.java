@@ -0,0 +1,22 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.TextGroupImmutable;
+
+import com.google.common.base.Optional;
+
+import org.immutables.value.Value;
+
+/**
+ * The mapping tables {@link Transliterator.FromParamsModule} loads from uRoman's data files. They
+ * are loaded together, so each data file is parsed at most once per injector.
+ */
+@Value.Immutable
+@TextGroupImmutable
+abstract class URomanMappingTables {
+
+  abstract Optional<SubstringMapper.LoadSubstringMappingsResult> customMappings();
+
+  abstract SubstringMapper unicodeOverwriteMappings();
+
+  static class Builder extends ImmutableURomanMappingTables.Builder {}
+}
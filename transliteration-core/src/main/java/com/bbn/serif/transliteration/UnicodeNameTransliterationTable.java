@@ -0,0 +1,89 @@
+package com.bbn.serif.transliteration;
+
+import com.google.common.io.CharSource;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The precomputed transliterations applied by {@link TransliterateByUnicodeCharacterName}, held as
+ * a sorted array of code points and a parallel array of transliterations. Equal transliterations
+ * share a single {@link String} instance.
+ *
+ * The table is generated by {@link BuildUnicodeNameTransliterationTable}. Each non-comment line of
+ * the file is a hexadecimal code point, a tab, and that code point's (possibly empty)
+ * transliteration. Lines starting with {@code #} are comments.
+ *
+ * This object is immutable and thread-safe.
+ */
+final class UnicodeNameTransliterationTable {
+
+  static final String RESOURCE_NAME = "unicodeNameTransliterations.txt";
+
+  private final int[] codePoints;
+  private final String[] transliterations;
+
+  private UnicodeNameTransliterationTable(int[] codePoints, String[] transliterations) {
+    this.codePoints = codePoints;
+    this.transliterations = transliterations;
+  }
+
+  /**
+   * The transliteration of {@code codePoint}, or {@code null} if the table has none.
+   */
+  String transliterationOf(final int codePoint) {
+    final int idx = Arrays.binarySearch(codePoints, codePoint);
+    return idx >= 0 ? transliterations[idx] : null;
+  }
+
+  int size() {
+    return codePoints.length;
+  }
+
+  static UnicodeNameTransliterationTable loadFromResource() {
+    try {
+      return loadFrom(Resources.asCharSource(
+          Resources.getResource(UnicodeNameTransliterationTable.class, RESOURCE_NAME), UTF_8));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not load " + RESOURCE_NAME, e);
+    }
+  }
+
+  static UnicodeNameTransliterationTable loadFrom(CharSource source) throws IOException {
+    int[] codePoints = new int[1024];
+    String[] transliterations = new String[1024];
+    final Map<String, String> stringPool = new HashMap<>();
+    int size = 0;
+    for (final String line : source.readLines()) {
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final int tab = line.indexOf('\t');
+      checkArgument(tab > 0, "Malformed line in Unicode name transliteration table: %s", line);
+      final int codePoint = Integer.parseInt(line.substring(0, tab), 16);
+      checkArgument(size == 0 || codePoints[size - 1] < codePoint,
+          "Unicode name transliteration table is not sorted at line %s", line);
+      final String transliteration = line.substring(tab + 1);
+      String pooled = stringPool.get(transliteration);
+      if (pooled == null) {
+        pooled = transliteration;
+        stringPool.put(pooled, pooled);
+      }
+      if (size == codePoints.length) {
+        codePoints = Arrays.copyOf(codePoints, 2 * size);
+        transliterations = Arrays.copyOf(transliterations, 2 * size);
+      }
+      codePoints[size] = codePoint;
+      transliterations[size] = pooled;
+      ++size;
+    }
+    return new UnicodeNameTransliterationTable(Arrays.copyOf(codePoints, size),
+        Arrays.copyOf(transliterations, size));
+  }
+}
@@ -0,0 +1,174 @@
+package com.bbn.serif.transliteration;
+
+import com.bbn.bue.common.StringUtils;
+import com.bbn.bue.common.UnicodeFriendlyString;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharSource;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.bbn.bue.common.StringUtils.unicodeFriendly;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSubstringMapper {
+  private static final Script LATIN = new Script.Builder()
+      .primaryName("Latin")
+      .addAllNames("Latin")
+      .build();
+
+  private static SubstringMapper.SubstringMapping mapping(String transliteration, double score) {
+    return new SubstringMapper.SubstringMapping.Builder()
+        .transliteration(unicodeFriendly(transliteration)).score(score).build();
+  }
+
+  @Test
+  public void testOverlappingPatterns() {
+    // 𝔸 is outside the BMP, so code point and code unit offsets differ after it
+    final SubstringMapper mapper = new SubstringMapper.Builder()
+        .putStringMappings(unicodeFriendly("a"), mapping("A", 1.0))
+        .putStringMappings(unicodeFriendly("b"), mapping("B", 1.0))
+        .putStringMappings(unicodeFriendly("c"), mapping("C", 1.0))
+        .putStringMappings(unicodeFriendly("𝔸"), mapping("X", 1.0))
+        .putStringMappings(unicodeFriendly("ab"), mapping("[ab]", 2.5))
+        .putStringMappings(unicodeFriendly("abc"), mapping("[abc]", 3.5))
+        .putStringMappings(unicodeFriendly("bc"), mapping("[bc]", 2.2))
+        .putStringMappings(unicodeFriendly("bc"), mapping("[bc-low]", 0.5))
+        .build();
+    assertEquals(3, mapper.maxPatternLength());
+
+    assertEquals("X[abc]A", decode(mapper, "𝔸abca"));
+    assertEquals("X[bc]A", decode(mapper, "𝔸bca"));
+    assertEquals("[ab]X", decode(mapper, "ab𝔸"));
+    assertEquals("C[ab]", decode(mapper, "cab"));
+  }
+
+  @Test
+  public void testMergedMappersKeepMapperOrder() {
+    final SubstringMapper first = new SubstringMapper.Builder()
+        .putStringMappings(unicodeFriendly("a"), mapping("first", 1.0))
+        .putStringMappings(unicodeFriendly("b"), mapping("B", 1.0))
+        .build();
+    final SubstringMapper second = new SubstringMapper.Builder()
+        .putStringMappings(unicodeFriendly("ab"), mapping("[ab]", 1.5))
+        .putStringMappings(unicodeFriendly("a"), mapping("second", 1.0))
+        .build();
+
+    // ties go to whichever edge was added first, so merging must not reorder mappers
+    assertEquals("firstB", decode(MergedSubstringMappers.of(ImmutableList.of(first, second)), "ab"));
+    assertEquals("secondB", decode(MergedSubstringMappers.of(ImmutableList.of(second, first)), "ab"));
+    assertEquals("first",
+        decode(MergedSubstringMappers.of(ImmutableList.of(first)).withAdditionalMapper(second),
+            "a"));
+  }
+
+  @SuppressWarnings("OptionalGetWithoutIsPresent")
+  @Test
+  public void testMergedMappersWithoutDerivations() {
+    final SubstringMapper mapper = new SubstringMapper.Builder()
+        .putStringMappings(unicodeFriendly("a"), new SubstringMapper.SubstringMapping.Builder()
+            .transliteration(unicodeFriendly("A")).score(1.0).comment("a comment").build())
+        .build();
+    final UnicodeFriendlyString a = unicodeFriendly("a");
+    for (final boolean keepDerivations : new boolean[]{true, false}) {
+      final TransliterationChart chart = TransliterationChart.createForLength(a,
+          Script.DefaultScriptMapping.uniform(a, LATIN));
+      new MergedSubstringMappers.Builder().addMappers(mapper).keepDerivations(keepDerivations)
+          .build().applyToChart(chart);
+      assertEquals("A", chart.bestDecoding().get().utf16CodeUnits());
+      assertEquals(keepDerivations,
+          chart.derivationOf(chart.edgesFromTo(0, 1).get(0)).get().equals("a comment"));
+    }
+  }
+
+  @Test
+  public void testLoadMappingsFile() throws IOException {
+    final SubstringMapper.URomanSubstringMappingsLoader loader =
+        new SubstringMapper.URomanSubstringMappingsLoader.Builder().build();
+    final SubstringMapper.LoadSubstringMappingsResult result = loader.load(ImmutableList.of(
+        CharSource.wrap("# comment\r\n::s a ::t \"A\"  ::comment first::comment second\r\n"
+            + "::s b  ::t b ::latinplus ḃ\r::s c ::num 3 ::lcode  uig \n::s d ::comment none")));
+    assertEquals("A", decode(result.generalMapper(), "a"));
+    assertEquals(Optional.of(StringUtils.SemicolonJoiner.join("first", "second")),
+        result.generalMapper().stringMappings().get(unicodeFriendly("a")).asList().get(0)
+            .comment());
+    assertEquals("ḃ", decode(result.generalMapper(), "b"));
+    assertEquals(0, numEdges(result.generalMapper(), "cd"));
+    assertEquals("3", decode(result.languageSpecificMappers().get("uig"), "c"));
+
+    try {
+      loader.load(ImmutableList.of(CharSource.wrap("::s a ::t A\n\n::s::t b\n")));
+      fail();
+    } catch (SubstringMapper.BadMappingsFileException e) {
+      assertTrue(e.getMessage().contains("line 3 ") && e.getMessage().endsWith("::s::t b"));
+    }
+  }
+
+  @Test
+  public void testLoadMappingsWithoutComments() throws IOException {
+    final SubstringMapper.URomanSubstringMappingsLoader loader =
+        new SubstringMapper.URomanSubstringMappingsLoader.Builder().keepComments(false).build();
+    final SubstringMapper.LoadSubstringMappingsResult result = loader.load(ImmutableList.of(
+        CharSource.wrap("::s a ::t A ::comment first\n"
+            + "::s b ::t B ::lcode amh ::comment second\n")));
+    assertFalse(result.generalMapper().stringMappings().get(unicodeFriendly("a")).asList().get(0)
+        .comment().isPresent());
+    assertFalse(result.languageSpecificMappers().get("amh").stringMappings()
+        .get(unicodeFriendly("b")).asList().get(0).comment().isPresent());
+    assertFalse(SubstringMapper.loadUromanUnicodeDataOverwriteMappings(
+        CharSource.wrap("::u 0063 ::r C ::comment third\n"), false).stringMappings()
+        .get(unicodeFriendly("c")).asList().get(0).comment().isPresent());
+  }
+
+  @Test
+  public void testConcatLoadResults() throws IOException {
+    final SubstringMapper.URomanSubstringMappingsLoader loader =
+        new SubstringMapper.URomanSubstringMappingsLoader.Builder().build();
+    final CharSource first = CharSource.wrap(
+        "::s a ::t A\n::s b ::t B ::lcode amh\n::s a ::t á\n");
+    final CharSource second = CharSource.wrap(
+        "::s c ::t C ::lcode tir\n::s a ::t ah\n::s b ::t bh ::lcode amh\n");
+    assertEquals(loader.load(ImmutableList.of(first, second)),
+        SubstringMapper.LoadSubstringMappingsResult.concat(ImmutableList.of(
+            loader.load(ImmutableList.of(first)), loader.load(ImmutableList.of(second)))));
+  }
+
+  @Test
+  public void testLazyCJKMapper() {
+    final LazyCJKMapper mapper = LazyCJKMapper.loadingURomanCJKMappings(
+        new SubstringMapper.URomanSubstringMappingsLoader.Builder().build(),
+        CharSource.wrap("中\tzhōng\n文\twén\nQ\tq\n"), true);
+    assertEquals(0, numEdges(mapper, "Quick"));
+    assertFalse(mapper.isLoaded());
+
+    assertEquals("zhōngwén", decode(mapper, "中文"));
+    assertTrue(mapper.isLoaded());
+    // only Han characters are mapped
+    assertEquals(0, numEdges(mapper, "Quick"));
+  }
+
+  private static int numEdges(DefaultTransliterator.TransliterationRuleBlock ruleBlock,
+      String s) {
+    final UnicodeFriendlyString ufs = unicodeFriendly(s);
+    final TransliterationChart chart = TransliterationChart.createForLength(ufs,
+        Script.DefaultScriptMapping.uniform(ufs, LATIN));
+    ruleBlock.applyToChart(chart);
+    return chart.numEdges();
+  }
+
+  @SuppressWarnings("OptionalGetWithoutIsPresent")
+  private static String decode(DefaultTransliterator.TransliterationRuleBlock ruleBlock,
+      String s) {
+    final UnicodeFriendlyString ufs = unicodeFriendly(s);
+    final TransliterationChart chart = TransliterationChart.createForLength(ufs,
+        Script.DefaultScriptMapping.uniform(ufs, LATIN));
+    ruleBlock.applyToChart(chart);
+    return chart.bestDecoding().get().utf16CodeUnits();
+  }
+}
@@ -3,6 +3,7 @@ package com.bbn.serif.transliteration;
 import com.bbn.bue.common.UnicodeFriendlyString;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 
 import org.junit.Test;
 
@@ -52,4 +53,156 @@ public class TestTokenizationChart {
     assertEquals("afood", testLongArc.bestDecoding().get().utf16CodeUnits());
 
   }
+
+  @Test
+  public void testDerivations() {
+    final UnicodeFriendlyString abc = unicodeFriendly("abc");
+    final TransliterationChart chart = TransliterationChart.createForLength(abc,
+        Script.DefaultScriptMapping.uniform(abc, LATIN));
+    final ChartEdge a = new ChartEdge.Builder().startPosition(0)
+        .endPosition(1).spanTransliteration("a").score(1.0).build();
+    final ChartEdge b = new ChartEdge.Builder().startPosition(1)
+        .endPosition(2).spanTransliteration("b").score(1.0).build();
+    chart.addEdge(a, "foo");
+    chart.addEdge(b, "bar");
+    chart.addExtended(a, 2, "ab", 1.5, "extend");
+    chart.addMerged(a, b, "a-b", 2.5, "merge");
+    chart.addExtended(new ChartEdge.Builder().startPosition(0)
+        .endPosition(2).spanTransliteration("a-b").score(2.5).build(), 3, "a-bc", 3.0, "again");
+
+    assertEquals("foo", chart.derivationOf(a).get());
+    assertEquals("extend [left: foo]", chart.derivationOf(new ChartEdge.Builder()
+        .startPosition(0).endPosition(2).spanTransliteration("ab").score(1.5).build()).get());
+    assertEquals("again [left: merge [left:foo][right: bar]]",
+        chart.derivationOf(new ChartEdge.Builder().startPosition(0).endPosition(3)
+            .spanTransliteration("a-bc").score(3.0).build()).get());
+
+    final TransliterationChart untracked = TransliterationChart.createForLength(abc,
+        Script.DefaultScriptMapping.uniform(abc, LATIN), false);
+    untracked.addEdge(a, "foo");
+    assertEquals(Optional.absent(), untracked.derivationOf(a));
+  }
+
+  @Test
+  public void testGroupEdgesEndingAt() {
+    final UnicodeFriendlyString abc = unicodeFriendly("abc");
+    final TransliterationChart chart = TransliterationChart.createForLength(abc,
+        Script.DefaultScriptMapping.uniform(abc, LATIN));
+    chart.addEdge(2, 3, "c", 1.0, "old");
+    final int firstEdge = chart.numEdges();
+    // as if two rule blocks were run together: the first adds single characters, the second
+    // pairs of them
+    chart.addEdge(0, 1, "a", 1.0, "first");
+    chart.assignToGroup(firstEdge, 0);
+    int firstEdgeOfStep = chart.numEdges();
+    chart.addEdge(1, 3, "bc", 1.0, "second");
+    chart.assignToGroup(firstEdgeOfStep, 1);
+    firstEdgeOfStep = chart.numEdges();
+    chart.addEdge(2, 3, "C", 1.0, "first");
+    chart.assignToGroup(firstEdgeOfStep, 0);
+    chart.groupEdgesEndingAt(firstEdge, 2);
+
+    assertEquals(ImmutableList.of("c", "C", "bc"), transliterations(chart.edgesEndingAt(3)));
+    assertEquals(ImmutableList.of("a"), transliterations(chart.edgesEndingAt(1)));
+  }
+
+  @Test
+  public void testDuplicateEdges() {
+    final UnicodeFriendlyString ab = unicodeFriendly("ab");
+    final TransliterationChart chart = TransliterationChart.createForLength(ab,
+        Script.DefaultScriptMapping.uniform(ab, LATIN));
+    chart.addEdge(0, 1, "a", 1.0, "first");
+    chart.addEdge(0, 1, "a", 0.5, "worse");
+    chart.addEdge(0, 1, "A", 1.0, "other");
+    assertEquals(ImmutableList.of("a", "A"), transliterations(chart.edgesStartingAt(0)));
+
+    // a cursor opened before a better duplicate arrives still sees the old edge
+    final TransliterationChart.EdgeCursor cursor = chart.newCursor().startingAt(0);
+    chart.addEdge(0, 1, "a", 2.0, "better");
+    assertEquals(true, cursor.next());
+    assertEquals(1.0, cursor.score(), 0.0);
+    assertEquals(ImmutableList.of("A", "a"), transliterations(chart.edgesStartingAt(0)));
+    assertEquals(2.0, chart.edgesFromTo(0, 1).get(1).score(), 0.0);
+    assertEquals("better", chart.derivationOf(chart.edgesFromTo(0, 1).get(1)).get());
+
+    chart.addEdge(1, 2, "b", 1.0, "b");
+    assertEquals("ab", chart.bestDecoding().get().utf16CodeUnits());
+  }
+
+  @Test
+  public void testMaxEdgesPerSpan() {
+    final UnicodeFriendlyString ab = unicodeFriendly("ab");
+    final TransliterationChart chart = TransliterationChart.createForLength(ab,
+        Script.DefaultScriptMapping.uniform(ab, LATIN), false, 2);
+    chart.addEdge(0, 1, "a", 1.0, "");
+    chart.addEdge(0, 1, "A", 2.0, "");
+    chart.addEdge(0, 1, "á", 1.5, "");
+    chart.addEdge(0, 1, "x", 0.5, "");
+    // edges over other spans don't count
+    chart.addEdge(0, 2, "ab", 1.0, "");
+    assertEquals(ImmutableList.of("A", "á", "ab"), transliterations(chart.edgesStartingAt(0)));
+
+    // a dropped edge proposed again with a higher score must still beat the worst edge kept
+    chart.addEdge(0, 1, "a", 1.2, "");
+    assertEquals(ImmutableList.of("A", "á"), transliterations(chart.edgesFromTo(0, 1)));
+  }
+
+  @Test
+  public void testMaxEdgesPerSpanEviction() {
+    final UnicodeFriendlyString ab = unicodeFriendly("ab");
+    final TransliterationChart chart = TransliterationChart.createForLength(ab,
+        Script.DefaultScriptMapping.uniform(ab, LATIN), false, 2);
+    chart.addEdge(0, 1, "a", 1.0, "");
+    chart.addEdge(0, 1, "A", 2.0, "");
+    // rejected for being no better than the worst edge of the full span
+    chart.addEdge(0, 1, "x", 0.5, "");
+    chart.addEdge(0, 1, "y", 1.0, "");
+    assertEquals(2, chart.numEdges());
+    // evicts the worst edge
+    chart.addEdge(0, 1, "á", 1.5, "");
+    assertEquals(ImmutableList.of("A", "á"), transliterations(chart.edgesFromTo(0, 1)));
+
+    // of equally bad edges, the most recently added is evicted
+    chart.addEdge(1, 2, "b", 1.0, "");
+    chart.addEdge(1, 2, "B", 1.0, "");
+    chart.addEdge(1, 2, "β", 1.1, "");
+    assertEquals(ImmutableList.of("b", "β"), transliterations(chart.edgesEndingAt(2)));
+
+    // the evicted edges are still in the chart, but no decoding goes through them
+    assertEquals(6, chart.numEdges());
+    assertEquals(Optional.of(unicodeFriendly("Aβ")), chart.bestDecoding());
+    chart.addEdge(0, 1, "A", 2.5, "");
+    assertEquals(ImmutableList.of("á", "A"), transliterations(chart.edgesFromTo(0, 1)));
+    assertEquals(Optional.of(unicodeFriendly("Aβ")), chart.bestDecoding());
+  }
+
+  @Test
+  public void testOutputFeatures() {
+    final OutputStringTable outputs = new OutputStringTable();
+    final int kta = outputs.intern("kta");
+    assertEquals("kt", outputs.consonantPart(kta));
+    assertEquals("a", outputs.vowelPart(kta));
+    assertEquals(OutputStringTable.ENDS_WITH_VOWEL | OutputStringTable.HAS_ROMAN_LETTER
+        | OutputStringTable.ONE_LINE, outputs.features(kta));
+
+    final int kt = outputs.intern("kt");
+    assertEquals(null, outputs.consonantPart(kt));
+    assertEquals(OutputStringTable.LATIN_CONSONANTS | OutputStringTable.HAS_ROMAN_LETTER
+        | OutputStringTable.ONE_LINE, outputs.features(kt));
+
+    // the split needs a consonant right before the final vowels and no line breaks
+    assertEquals(null, outputs.consonantPart(outputs.intern("ai")));
+    assertEquals(null, outputs.consonantPart(outputs.intern("k\nta")));
+    assertEquals(OutputStringTable.ENDS_WITH_VOWEL | OutputStringTable.HAS_ROMAN_LETTER,
+        outputs.features(outputs.intern("k\nta")));
+    assertEquals(OutputStringTable.ONE_LINE, outputs.features(outputs.intern("")));
+  }
+
+  private static ImmutableList<String> transliterations(Iterable<ChartEdge> edges) {
+    final ImmutableList.Builder<String> ret = ImmutableList.builder();
+    for (final ChartEdge edge : edges) {
+      ret.add(edge.spanTransliteration());
+    }
+    return ret.build();
+  }
 }
@@ -5,9 +5,11 @@ import com.bbn.bue.common.parameters.Parameters;
 import com.bbn.bue.common.parameters.ParametersModule;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
+import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -22,6 +24,10 @@ import java.io.IOException;
 
 import static com.bbn.bue.common.StringUtils.unicodeFriendly;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests are from URoman's per-language example files. Reference output is
@@ -68,6 +74,23 @@ public class TestTransliterators {
     testAgainstURomanOutput(transliteratorFor("amh"), "amh");
   }
 
+  @Test
+  public void ethiopicSyllablesTest() throws IOException {
+    assertEquals(unicodeFriendly("amarïňa sälamï"),
+        transliteratorFor("amh").transliterate(unicodeFriendly("አማርኛ ሰላም")));
+    assertEquals(unicodeFriendly("tgrňa sälam"),
+        transliteratorFor("tir").transliterate(unicodeFriendly("ትግርኛ ሰላም")));
+
+    // labialized rows have no second order, and U+1249 etc. are unassigned
+    final EthiopicSyllables amharic = EthiopicSyllables.forLanguage("amh");
+    assertEquals("k’ʷä", amharic.transliterationOf(0x1248));
+    assertNull(amharic.transliterationOf(0x1249));
+    assertEquals("k’ʷi", amharic.transliterationOf(0x124A));
+    for (final int unassigned : new int[]{0x1289, 0x12B1, 0x1311}) {
+      assertNull(amharic.transliterationOf(unassigned));
+    }
+  }
+
   @Test
   public void arabicTest() throws IOException {
     testAgainstURomanOutput(transliteratorFor("ara"), "ara");
@@ -127,13 +150,20 @@ public class TestTransliterators {
     testAgainstURomanOutput(transliteratorFor("jpn"), "jpn");
   }
 
-  // hangul
+  // Hangul matches, but not the tone marks of Chinese characters or trailing whitespace
   @Test
   @Ignore
   public void koreanTest() throws IOException {
     testAgainstURomanOutput(transliteratorFor("kor"), "kor");
   }
 
+  @Test
+  public void hangulSyllablesTest() {
+    assertEquals(unicodeFriendly("oseuteureilria yeonbang ddoneun hoju, issda. gag hih"),
+        transliteratorFor("kor").transliterate(
+            unicodeFriendly("오스트레일리아 연방 또는 호주, 있다. 각 힣")));
+  }
+
   // overzealous schwa-deletion, issue #4
   @Ignore
   @Test
@@ -211,6 +241,98 @@ public class TestTransliterators {
         transliteratorFor("").transliterate(unicodeFriendly("_-")).utf16CodeUnits());
   }
 
+  @Test
+  public void contextFreeFastPathTest() {
+    final DefaultTransliterator withFastPath = (DefaultTransliterator) transliteratorFor("hin");
+    final DefaultTransliterator withoutFastPath = new DefaultTransliterator.Builder()
+        .from(withFastPath).useContextFreeFastPath(false).build();
+    // mixes context-free code points with ones which need a chart, such as a Devanagari nukta
+    // applied to a katakana syllable
+    for (final String s : ImmutableSet.of("Москва", "नमस्ते दुनिया", "カ़क", "a्, Ελλάδα",
+        "中文 and हिन्दी")) {
+      assertTransliterationEquals(
+          withoutFastPath.transliterate(unicodeFriendly(s)).utf16CodeUnits(), s, withFastPath);
+    }
+  }
+
+  @Test
+  public void lazyCJKMappingsTest() {
+    final LazyCJKMapper cjkMapper = LazyCJKMapper.loadingURomanCJKMappings(
+        new SubstringMapper.URomanSubstringMappingsLoader.Builder().build(),
+        CharSource.wrap("中\tzhōng\n文\twén\n"), true);
+    final DefaultTransliterator transliterator = new DefaultTransliterator.Builder()
+        .scriptMapper(((DefaultTransliterator) generalTransliterator).scriptMapper())
+        .putRuleBlocksBySequenceNumber(DefaultTransliterator.INDEPENDENT_INITIAL_STEP,
+            TransliterateByUnicodeCharacterName.INSTANCE)
+        .putRuleBlocksBySequenceNumber(DefaultTransliterator.INDEPENDENT_INITIAL_STEP, cjkMapper)
+        .build();
+    // CJK punctuation and kana share their blocks with a few Han code points such as 々
+    transliterator.transliterate(unicodeFriendly("「カナ」 、"));
+    assertFalse(cjkMapper.isLoaded());
+    assertEquals("zhōng", transliterator.transliterate(unicodeFriendly("中")).utf16CodeUnits());
+    assertTrue(cjkMapper.isLoaded());
+
+    // once loaded, Han code points in blocks not yet worked out take the context-free fast path
+    final ContextFreeCodePoints contextFreeCodePoints =
+        transliterator.contextFreeCodePoints().get();
+    assertNull(contextFreeCodePoints.decodingOf('中'));
+    assertNotNull(contextFreeCodePoints.decodingOf('文'));
+    assertEquals("wénzhōng",
+        transliterator.transliterate(unicodeFriendly("文中")).utf16CodeUnits());
+  }
+
+  @Test
+  public void incrementalDecodingTest() throws IOException {
+    for (final String language : ImmutableSet.of("ara", "ell", "heb", "hin", "rus", "tur")) {
+      final DefaultTransliterator incremental =
+          (DefaultTransliterator) transliteratorFor(language);
+      final DefaultTransliterator withChart = new DefaultTransliterator.Builder()
+          .from(incremental).useIncrementalDecoding(false).useContextFreeFastPath(false).build();
+      final String input = Resources.asCharSource(Resources.getResource(TestTransliterators.class,
+          language + ".txt"), Charsets.UTF_8).read();
+      assertTransliterationEquals(withChart.transliterate(unicodeFriendly(input)).utf16CodeUnits(),
+          input, new DefaultTransliterator.Builder().from(incremental)
+              .useContextFreeFastPath(false).build());
+    }
+  }
+
+  @Test
+  public void reuseWorkspacesTest() throws IOException {
+    final String longInput = Resources.asCharSource(Resources.getResource(
+        TestTransliterators.class, "hin.txt"), Charsets.UTF_8).read();
+    for (final boolean useFastPath : new boolean[]{true, false}) {
+      final DefaultTransliterator fresh = new DefaultTransliterator.Builder()
+          .from((DefaultTransliterator) transliteratorFor("hin"))
+          .useContextFreeFastPath(useFastPath).reuseWorkspaces(false).build();
+      final DefaultTransliterator reusing = new DefaultTransliterator.Builder().from(fresh)
+          .reuseWorkspaces(true).build();
+      // a long string grows the reused chart, and anything it leaves behind must not affect the
+      // short strings after it. The Devanagari ones involve the abugida and schwa deletion rules.
+      for (final String s : ImmutableList.of(longInput, "नमस्ते", "abc", "हिन्दी", "Москва",
+          longInput, "क", "दुनिया")) {
+        assertTransliterationEquals(fresh.transliterate(unicodeFriendly(s)).utf16CodeUnits(), s,
+            reusing);
+      }
+    }
+  }
+
+  @Test
+  public void streamTest() throws IOException {
+    final Transliterator transliterator = transliteratorFor("hin");
+    final String input = Resources.asCharSource(Resources.getResource(TestTransliterators.class,
+        "hin.txt"), Charsets.UTF_8).read() + "\uD835\uDC00 Ελλάδα";
+    final StringBuilder streamed = new StringBuilder();
+    final TransliterationStream stream = TransliterationStream.create(transliterator);
+    // pieces of three code units split some surrogate pairs
+    for (int i = 0; i < input.length(); i += 3) {
+      streamed.append(stream.append(unicodeFriendly(
+          input.substring(i, Math.min(i + 3, input.length())))).utf16CodeUnits());
+    }
+    streamed.append(stream.finish().utf16CodeUnits());
+    assertEquals(transliterator.transliterate(unicodeFriendly(input)).utf16CodeUnits(),
+        streamed.toString());
+  }
+
   private static void assertTransliterationEquals(String reference, String toTransliterate,
       Transliterator transliterator) {
     assertEquals(reference, transliterator.transliterate(